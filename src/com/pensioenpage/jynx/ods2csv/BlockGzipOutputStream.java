@@ -0,0 +1,341 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that writes data in the GZIP format, optionally compressing
+ * blocks of data on multiple threads at once.
+ *
+ * <p>The data is split in blocks that are each deflated independently, like
+ * <em>pigz</em> does. Each block is primed with the last 32 KiB of the
+ * previous block as a preset dictionary, and all but the last block end
+ * with a sync flush, so the blocks together form a single, regular deflate
+ * stream that any GZIP decompressor can read. Compressed blocks are written
+ * in order; at most two blocks per thread are in progress at any time, so
+ * memory use stays bounded.
+ *
+ * <p>Instances of this class are not thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class BlockGzipOutputStream extends OutputStream {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The size of a single uncompressed block, in bytes.
+    */
+   private static final int BLOCK_SIZE = 128 * 1024;
+
+   /**
+    * The size of the preset dictionary, which is the size of the deflate
+    * window.
+    */
+   private static final int DICTIONARY_SIZE = 32 * 1024;
+
+   /**
+    * The GZIP header: magic, deflate method, no flags, no modification
+    * time, no extra flags, unknown operating system.
+    */
+   private static final byte[] HEADER = {
+      (byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+   };
+
+   /**
+    * Factory for the compression threads. These are daemon threads, so an
+    * abandoned stream never keeps the JVM alive.
+    */
+   private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, "ods2csv-gzip");
+         thread.setDaemon(true);
+         return thread;
+      }
+   };
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Deflates a single block.
+    *
+    * @param data
+    *    the uncompressed data, cannot be <code>null</code>.
+    *
+    * @param length
+    *    the number of bytes in <code>data</code> that are in use.
+    *
+    * @param dictionary
+    *    the preset dictionary, or <code>null</code> for the first block.
+    *
+    * @param last
+    *    <code>true</code> if this is the last block.
+    *
+    * @return
+    *    the compressed block, never <code>null</code>.
+    */
+   private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+         if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+         }
+         deflater.setInput(data, 0, length);
+
+         ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+         byte[] buffer = new byte[16 * 1024];
+         if (last) {
+            deflater.finish();
+            while (! deflater.finished()) {
+               int n = deflater.deflate(buffer);
+               compressed.write(buffer, 0, n);
+            }
+         } else {
+            int n;
+            do {
+               n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+               compressed.write(buffer, 0, n);
+            } while (n == buffer.length);
+         }
+         return compressed.toByteArray();
+      } finally {
+         deflater.end();
+      }
+   }
+
+   private static void writeIntLE(OutputStream out, long value) throws IOException {
+      out.write((int)  value         & 0xff);
+      out.write((int) (value >>>  8) & 0xff);
+      out.write((int) (value >>> 16) & 0xff);
+      out.write((int) (value >>> 24) & 0xff);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>BlockGzipOutputStream</code> and writes the
+    * GZIP header.
+    *
+    * @param out
+    *    the stream to write the compressed data to,
+    *    cannot be <code>null</code>.
+    *
+    * @param threads
+    *    the number of threads to compress on, must be &gt;= 1; if this is
+    *    1, all blocks are compressed on the calling thread.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>out == null || threads &lt; 1</code>.
+    *
+    * @throws IOException
+    *    if the header could not be written.
+    */
+   public BlockGzipOutputStream(OutputStream out, int threads)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (out == null) {
+         throw new IllegalArgumentException("out == null");
+      } else if (threads < 1) {
+         throw new IllegalArgumentException("threads (" + threads + ") < 1");
+      }
+
+      // Initialize instance fields
+      _out     = out;
+      _block   = new byte[BLOCK_SIZE];
+      _crc     = new CRC32();
+      _pending = new ArrayDeque<Future<byte[]>>();
+      _maxPending = threads * 2;
+      if (threads > 1) {
+         ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+         pool.allowCoreThreadTimeOut(true);
+         _pool = pool;
+      } else {
+         _pool = null;
+      }
+
+      _out.write(HEADER);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The stream to write the compressed data to. Never <code>null</code>.
+    */
+   private final OutputStream _out;
+
+   /**
+    * The threads to compress on, or <code>null</code> to compress on the
+    * calling thread.
+    */
+   private final ExecutorService _pool;
+
+   /**
+    * The blocks being compressed, in order.
+    */
+   private final Deque<Future<byte[]>> _pending;
+
+   /**
+    * The maximum number of blocks being compressed at any time.
+    */
+   private final int _maxPending;
+
+   /**
+    * The checksum of all uncompressed data.
+    */
+   private final CRC32 _crc;
+
+   /**
+    * The block currently being filled. Never <code>null</code>.
+    */
+   private byte[] _block;
+
+   /**
+    * The number of bytes in {@link #_block} that are in use.
+    */
+   private int _count;
+
+   /**
+    * The preset dictionary for the next block, or <code>null</code> if no
+    * block has been compressed yet.
+    */
+   private byte[] _dictionary;
+
+   /**
+    * The total number of uncompressed bytes.
+    */
+   private long _size;
+
+   private boolean _closed;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   @Override
+   public void write(int b) throws IOException {
+      if (_count == _block.length) {
+         compressBlock(false);
+      }
+      _block[_count++] = (byte) b;
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+         if (_count == _block.length) {
+            compressBlock(false);
+         }
+         int n = Math.min(len, _block.length - _count);
+         System.arraycopy(b, off, _block, _count, n);
+         _count += n;
+         off    += n;
+         len    -= n;
+      }
+   }
+
+   /**
+    * Hands the current block off for compression and starts a new one.
+    */
+   private void compressBlock(final boolean last) throws IOException {
+      final byte[] data       = _block;
+      final int    length     = _count;
+      final byte[] dictionary = _dictionary;
+
+      _crc.update(data, 0, length);
+      _size += length;
+
+      // The end of this block is the dictionary for the next one
+      if (length >= DICTIONARY_SIZE) {
+         _dictionary = new byte[DICTIONARY_SIZE];
+         System.arraycopy(data, length - DICTIONARY_SIZE, _dictionary, 0, DICTIONARY_SIZE);
+      }
+      _block = new byte[BLOCK_SIZE];
+      _count = 0;
+
+      // Compress on this thread or hand it to the pool
+      if (_pool == null) {
+         _out.write(deflate(data, length, dictionary, last));
+      } else {
+         _pending.addLast(_pool.submit(new Callable<byte[]>() {
+            public byte[] call() {
+               return deflate(data, length, dictionary, last);
+            }
+         }));
+         while (_pending.size() >= _maxPending || (last && ! _pending.isEmpty())) {
+            writePending();
+         }
+      }
+   }
+
+   /**
+    * Waits for the oldest block being compressed and writes it.
+    */
+   private void writePending() throws IOException {
+      try {
+         _out.write(_pending.removeFirst().get());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while compressing.", e);
+      } catch (ExecutionException e) {
+         throw new IOException("Failed to compress block.", e.getCause());
+      }
+   }
+
+   @Override
+   public void flush() throws IOException {
+      _out.flush();
+   }
+
+   /**
+    * Compresses the remaining data, writes the GZIP trailer and closes the
+    * underlying stream.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   @Override
+   public void close() throws IOException {
+      if (_closed) {
+         return;
+      }
+      _closed = true;
+      try {
+         compressBlock(true);
+         writeIntLE(_out, _crc.getValue());
+         writeIntLE(_out, _size);
+         _out.flush();
+      } finally {
+         if (_pool != null) {
+            _pool.shutdownNow();
+         }
+         _out.close();
+      }
+   }
+}
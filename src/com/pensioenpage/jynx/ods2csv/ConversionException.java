@@ -2,7 +2,10 @@
 package com.pensioenpage.jynx.ods2csv;
 
 /**
- * Exception that indicates an ODS-to-CSV conversion failed.
+ * Exception that indicates an ODS-to-CSV conversion failed because of the
+ * input document: it is not a valid document, it exceeds a limit or it took
+ * too long to convert. I/O errors are reported as
+ * {@link java.io.IOException}s instead.
  *
  * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
  */
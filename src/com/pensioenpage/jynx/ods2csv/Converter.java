@@ -1,12 +1,22 @@
 // Copyright 2007-2009, PensioenPage B.V.
 package com.pensioenpage.jynx.ods2csv;
 
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
 import java.io.Writer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import org.xml.sax.Attributes;
@@ -20,10 +30,70 @@ import org.xml.sax.helpers.XMLReaderFactory;
 /**
  * Core functionality for converting an ODS-document to CSV-text.
  *
+ * <p>The input can be a regular (zipped) ODS-document, a Flat ODS document
+ * (<code>.fods</code>, a single XML file) or a plain
+ * <code>content.xml</code> file. The format is detected from the first
+ * bytes of the input.
+ *
  * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
  */
 public final class Converter extends Object {
 
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The first bytes of a ZIP stream: a local file header signature.
+    */
+   private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+   /**
+    * The default memory budget for buffered data, in bytes. Currently 1 MiB.
+    */
+   public static final int DEFAULT_MEMORY_BUDGET = 1024 * 1024;
+
+   /**
+    * The default maximum number of bytes inflated from the ZIP stream
+    * entry, in bytes. Currently 4 GiB.
+    */
+   public static final long DEFAULT_MAX_CONTENT_SIZE = 4L * 1024L * 1024L * 1024L;
+
+   /**
+    * The default maximum number of cells in a single row. This matches the
+    * maximum number of columns supported by current spreadsheet
+    * applications.
+    */
+   public static final int DEFAULT_MAX_CELLS_PER_ROW = 16384;
+
+   /**
+    * The default maximum total number of cells in a document.
+    */
+   public static final long DEFAULT_MAX_CELLS = 256L * 1024L * 1024L;
+
+   /**
+    * The name used for sheets that have no name.
+    */
+   private static final String UNNAMED_SHEET = "Sheet";
+
+   /**
+    * The timer that interrupts conversions that take longer than the time
+    * limit. Its single thread is a daemon, so it never keeps the JVM alive.
+    */
+   private static final ScheduledThreadPoolExecutor WATCHDOG_TIMER;
+
+   static {
+      WATCHDOG_TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ods2csv-watchdog");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      WATCHDOG_TIMER.setRemoveOnCancelPolicy(true);
+   }
+
+
    //-------------------------------------------------------------------------
    // Constructors
    //-------------------------------------------------------------------------
@@ -32,14 +102,240 @@ public final class Converter extends Object {
     * Constructs a new <code>Converter</code> instance.
     */
    public Converter() {
-      // empty
+      _memoryBudget   = DEFAULT_MEMORY_BUDGET;
+      _maxContentSize = DEFAULT_MAX_CONTENT_SIZE;
+      _maxCellsPerRow = DEFAULT_MAX_CELLS_PER_ROW;
+      _maxCells       = DEFAULT_MAX_CELLS;
+      _indexInterval  = RowIndex.DEFAULT_INTERVAL;
    }
 
 
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The maximum number of bytes of buffered data to keep in memory.
+    * See {@link #setMemoryBudget(int)}.
+    */
+   private int _memoryBudget;
+
+   /**
+    * The maximum number of bytes inflated from the ZIP stream.
+    * See {@link #setMaxContentSize(long)}.
+    */
+   private long _maxContentSize;
+
+   /**
+    * The maximum number of cells in a single row.
+    * See {@link #setMaxCellsPerRow(int)}.
+    */
+   private int _maxCellsPerRow;
+
+   /**
+    * The maximum total number of cells.
+    * See {@link #setMaxCells(long)}.
+    */
+   private long _maxCells;
+
+   /**
+    * The interval between indexed rows in a row index.
+    * See {@link #setRowIndexInterval(int)}.
+    */
+   private int _indexInterval;
+
+   /**
+    * The maximum duration of a single conversion, in milliseconds.
+    * See {@link #setTimeout(long)}.
+    */
+   private long _timeout;
+
+
    //-------------------------------------------------------------------------
    // Methods
    //-------------------------------------------------------------------------
 
+   /**
+    * Sets the memory budget for buffered data. Rows are assembled in a
+    * buffer before they are written; any data beyond this budget spills
+    * over to a temporary file. The default is
+    * {@link #DEFAULT_MEMORY_BUDGET}.
+    *
+    * @param budget
+    *    the maximum number of bytes to keep in memory, must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>budget &lt; 0</code>.
+    */
+   public void setMemoryBudget(int budget) throws IllegalArgumentException {
+      if (budget < 0) {
+         throw new IllegalArgumentException("budget (" + budget + ") < 0");
+      }
+      _memoryBudget = budget;
+   }
+
+   /**
+    * Returns the memory budget for buffered data.
+    *
+    * @return
+    *    the maximum number of bytes to keep in memory, always &gt;= 0.
+    */
+   public int getMemoryBudget() {
+      return _memoryBudget;
+   }
+
+   /**
+    * Sets the maximum number of bytes inflated from the ZIP stream, counting
+    * the entries before <code>content.xml</code> as well as
+    * <code>content.xml</code> itself; or the maximum size of the XML
+    * document itself if the input is not zipped. If the content turns out
+    * to be larger, the conversion fails. The default
+    * is {@link #DEFAULT_MAX_CONTENT_SIZE}.
+    *
+    * @param max
+    *    the maximum number of bytes, or <code>0</code> for no limit;
+    *    must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>max &lt; 0</code>.
+    */
+   public void setMaxContentSize(long max) throws IllegalArgumentException {
+      if (max < 0L) {
+         throw new IllegalArgumentException("max (" + max + ") < 0");
+      }
+      _maxContentSize = max;
+   }
+
+   /**
+    * Returns the maximum number of bytes inflated from the ZIP stream.
+    *
+    * @return
+    *    the maximum number of bytes, or <code>0</code> for no limit.
+    */
+   public long getMaxContentSize() {
+      return _maxContentSize;
+   }
+
+   /**
+    * Sets the maximum number of cells in a single row. If a row contains
+    * more cells, the conversion fails. The default is
+    * {@link #DEFAULT_MAX_CELLS_PER_ROW}.
+    *
+    * @param max
+    *    the maximum number of cells, or <code>0</code> for no limit;
+    *    must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>max &lt; 0</code>.
+    */
+   public void setMaxCellsPerRow(int max) throws IllegalArgumentException {
+      if (max < 0) {
+         throw new IllegalArgumentException("max (" + max + ") < 0");
+      }
+      _maxCellsPerRow = max;
+   }
+
+   /**
+    * Returns the maximum number of cells in a single row.
+    *
+    * @return
+    *    the maximum number of cells, or <code>0</code> for no limit.
+    */
+   public int getMaxCellsPerRow() {
+      return _maxCellsPerRow;
+   }
+
+   /**
+    * Sets the maximum total number of cells. If the document contains more
+    * cells, the conversion fails. The default is {@link #DEFAULT_MAX_CELLS}.
+    *
+    * @param max
+    *    the maximum number of cells, or <code>0</code> for no limit;
+    *    must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>max &lt; 0</code>.
+    */
+   public void setMaxCells(long max) throws IllegalArgumentException {
+      if (max < 0L) {
+         throw new IllegalArgumentException("max (" + max + ") < 0");
+      }
+      _maxCells = max;
+   }
+
+   /**
+    * Returns the maximum total number of cells.
+    *
+    * @return
+    *    the maximum number of cells, or <code>0</code> for no limit.
+    */
+   public long getMaxCells() {
+      return _maxCells;
+   }
+
+   /**
+    * Sets the maximum duration of a single conversion. If a conversion takes
+    * longer, the converting thread is interrupted and the conversion fails
+    * with a {@link ConversionException}. This covers skipping ZIP entries as
+    * well as parsing, and also reads that block, as long as the input
+    * stream is interruptible, like the channel-based streams from
+    * {@link java.nio.file.Files#newInputStream(java.nio.file.Path,java.nio.file.OpenOption...)}.
+    * The default is <code>0</code>, meaning no limit.
+    *
+    * @param timeout
+    *    the maximum duration in milliseconds, or <code>0</code> for no
+    *    limit; must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>timeout &lt; 0</code>.
+    */
+   public void setTimeout(long timeout) throws IllegalArgumentException {
+      if (timeout < 0L) {
+         throw new IllegalArgumentException("timeout (" + timeout + ") < 0");
+      }
+      _timeout = timeout;
+   }
+
+   /**
+    * Returns the maximum duration of a single conversion.
+    *
+    * @return
+    *    the maximum duration in milliseconds, or <code>0</code> for no
+    *    limit.
+    */
+   public long getTimeout() {
+      return _timeout;
+   }
+
+   /**
+    * Sets the interval between indexed rows in a row index, see
+    * {@link #convert(InputStream,OutputStream,OutputStream)}. A smaller
+    * interval makes the index larger, but locating a row faster. The default
+    * is {@link RowIndex#DEFAULT_INTERVAL}.
+    *
+    * @param interval
+    *    the interval between indexed rows, must be &gt;= 1.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>interval &lt; 1</code>.
+    */
+   public void setRowIndexInterval(int interval) throws IllegalArgumentException {
+      if (interval < 1) {
+         throw new IllegalArgumentException("interval (" + interval + ") < 1");
+      }
+      _indexInterval = interval;
+   }
+
+   /**
+    * Returns the interval between indexed rows in a row index.
+    *
+    * @return
+    *    the interval between indexed rows, always &gt;= 1.
+    */
+   public int getRowIndexInterval() {
+      return _indexInterval;
+   }
+
    /**
     * Converts using the specified input and output streams. No buffering will
     * be done by this method, so it may be wise to wrap the input stram inside
@@ -47,7 +343,8 @@ public final class Converter extends Object {
     *
     * @param in
     *    the {@link InputStream}, to read the input from, should be an
-    *    ODS-document, cannot be <code>null</code>.
+    *    ODS-document, a Flat ODS document or a <code>content.xml</code>
+    *    file, cannot be <code>null</code>.
     *
     * @param out
     *    the {@link OutputStream}, to write the output to, will be CSV text,
@@ -57,10 +354,13 @@ public final class Converter extends Object {
     *    if <code>in == null || out == null</code>.
     *
     * @throws IOException
-    *    in case of an I/O error.
+    *    in case of an I/O error while reading the input or writing the
+    *    output, or an {@link InterruptedIOException} if the thread was
+    *    interrupted.
     *
     * @throws ConversionException
-    *    in case of a conversion failure.
+    *    if the input is not a valid document, exceeds a limit or took
+    *    longer than the time limit.
     */
    public void convert(InputStream in, OutputStream out)
    throws IllegalArgumentException, IOException, ConversionException {
@@ -72,15 +372,240 @@ public final class Converter extends Object {
          throw new IllegalArgumentException("out == null");
       }
 
-      // Find the "content.xml" file in the ZIP file
-      ZipInputStream zin = new ZipInputStream(in);
-      ZipEntry entry = null, contentEntry = null;
-      do {
-         entry = zin.getNextEntry();
-         if (entry != null && !entry.isDirectory() && "content.xml".equals(entry.getName())) {
-            contentEntry = entry;
+      convert(in, new XMLParser(out, _memoryBudget, _maxCellsPerRow, _maxCells));
+   }
+
+   /**
+    * Converts using the specified input and output streams, while writing
+    * a {@link RowIndex} that allows random access into the output.
+    *
+    * @param in
+    *    the {@link InputStream}, to read the input from, should be an
+    *    ODS-document, a Flat ODS document or a <code>content.xml</code>
+    *    file, cannot be <code>null</code>.
+    *
+    * @param out
+    *    the {@link OutputStream}, to write the output to, will be CSV text,
+    *    cannot be <code>null</code>.
+    *
+    * @param rowIndex
+    *    the {@link OutputStream}, to write the row index to,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>in == null || out == null || rowIndex == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error while reading the input or writing the
+    *    output, or an {@link InterruptedIOException} if the thread was
+    *    interrupted.
+    *
+    * @throws ConversionException
+    *    if the input is not a valid document, exceeds a limit or took
+    *    longer than the time limit.
+    */
+   public void convert(InputStream in, OutputStream out, OutputStream rowIndex)
+   throws IllegalArgumentException, IOException, ConversionException {
+
+      // Check preconditions
+      if (rowIndex == null) {
+         throw new IllegalArgumentException("rowIndex == null");
+      }
+
+      convert(in, out, rowIndex, null);
+   }
+
+   /**
+    * Converts using the specified input and output streams, optionally
+    * writing a {@link RowIndex} and per-column statistics as well. Both are
+    * produced in the same pass over the input.
+    *
+    * <p>The statistics are a JSON document with, for each sheet, its name,
+    * its number of rows and a list of columns. For each column the inferred
+    * type (an OpenDocument value type such as <code>"float"</code> or
+    * <code>"date"</code>, <code>"string"</code> for text or mixed types, or
+    * <code>"empty"</code>), the number of empty cells, an estimate of the
+    * number of distinct values, the minimum and maximum value and the
+    * maximum value length are given.
+    *
+    * @param in
+    *    the {@link InputStream}, to read the input from, should be an
+    *    ODS-document, a Flat ODS document or a <code>content.xml</code>
+    *    file, cannot be <code>null</code>.
+    *
+    * @param out
+    *    the {@link OutputStream}, to write the output to, will be CSV text,
+    *    cannot be <code>null</code>.
+    *
+    * @param rowIndex
+    *    the {@link OutputStream}, to write the row index to,
+    *    or <code>null</code> if no row index should be written.
+    *
+    * @param statistics
+    *    the {@link OutputStream}, to write the statistics to, will be JSON
+    *    text, or <code>null</code> if no statistics should be written.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>in == null || out == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error while reading the input or writing the
+    *    output, or an {@link InterruptedIOException} if the thread was
+    *    interrupted.
+    *
+    * @throws ConversionException
+    *    if the input is not a valid document, exceeds a limit or took
+    *    longer than the time limit.
+    */
+   public void convert(InputStream in, OutputStream out, OutputStream rowIndex, OutputStream statistics)
+   throws IllegalArgumentException, IOException, ConversionException {
+
+      // Check preconditions
+      if (in == null) {
+         throw new IllegalArgumentException("in == null");
+      } else if (out == null) {
+         throw new IllegalArgumentException("out == null");
+      }
+
+      XMLParser  parser = new XMLParser(out, _memoryBudget, _maxCellsPerRow, _maxCells);
+      RowIndex   index  = (rowIndex   == null) ? null : new RowIndex(_indexInterval);
+      Statistics stats  = (statistics == null) ? null : new Statistics();
+      parser.setRowIndex(index);
+      parser.setStatistics(stats);
+      convert(in, parser);
+      if (index != null) {
+         index.write(rowIndex);
+      }
+      if (stats != null) {
+         stats.write(statistics);
+      }
+   }
+
+   /**
+    * Converts using the specified input and output streams, emitting only
+    * the rows that changed since a previous conversion. The comparison is
+    * based on a row index, holding a hash per row, that is written during
+    * each conversion.
+    *
+    * <p>Rows are matched by sheet and content, not by position, so inserting
+    * a row only reports that row. Each output record starts with three
+    * extra columns: a change marker, the sheet name and the 1-based row
+    * number within the sheet. The marker is <code>A</code> for a row that
+    * was added and <code>R</code> for a row that was removed; a modified row
+    * is reported as removed at its old position and added at its new one.
+    * Removed rows have no further columns and are written last, with their
+    * position in the previous conversion.
+    *
+    * @param in
+    *    the {@link InputStream}, to read the input from, should be an
+    *    ODS-document, a Flat ODS document or a <code>content.xml</code>
+    *    file, cannot be <code>null</code>.
+    *
+    * @param out
+    *    the {@link OutputStream}, to write the changed rows to, will be CSV
+    *    text, cannot be <code>null</code>.
+    *
+    * @param previousIndex
+    *    the row index written by the previous conversion, or
+    *    <code>null</code> if there is none, in which case all rows are
+    *    considered added.
+    *
+    * @param newIndex
+    *    the {@link OutputStream}, to write the row index of this conversion
+    *    to, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>in == null || out == null || newIndex == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error, or if <code>previousIndex</code> is not a
+    *    valid row index, or an {@link InterruptedIOException} if the thread
+    *    was interrupted.
+    *
+    * @throws ConversionException
+    *    if the input is not a valid document, exceeds a limit or took
+    *    longer than the time limit.
+    */
+   public void convertChanges(InputStream in, OutputStream out, InputStream previousIndex, OutputStream newIndex)
+   throws IllegalArgumentException, IOException, ConversionException {
+
+      // Check preconditions
+      if (in == null) {
+         throw new IllegalArgumentException("in == null");
+      } else if (out == null) {
+         throw new IllegalArgumentException("out == null");
+      } else if (newIndex == null) {
+         throw new IllegalArgumentException("newIndex == null");
+      }
+
+      XMLParser parser = new XMLParser(out, _memoryBudget, _maxCellsPerRow, _maxCells);
+      parser.setRowDiff(new RowDiff(previousIndex, newIndex));
+      convert(in, parser);
+   }
+
+   private void convert(InputStream in, XMLParser parser)
+   throws IOException, ConversionException {
+
+      // Without a time limit, just convert
+      if (_timeout == 0L) {
+         convertContent(in, parser);
+         return;
+      }
+
+      // Otherwise interrupt this thread once the time limit expires
+      Watchdog watchdog = new Watchdog(Thread.currentThread());
+      ScheduledFuture<?> future = WATCHDOG_TIMER.schedule(watchdog, _timeout, TimeUnit.MILLISECONDS);
+      try {
+         convertContent(in, parser);
+      } catch (IOException e) {
+         if (watchdog.stop()) {
+            throw new ConversionException("Conversion took longer than " + _timeout + " ms.", e);
          }
-      } while (entry != null && contentEntry == null);
+         throw e;
+      } finally {
+         future.cancel(false);
+         watchdog.stop();
+      }
+   }
+
+   private void convertContent(InputStream in, XMLParser parser)
+   throws IOException, ConversionException {
+
+      // Flat ODS or plain content.xml: parse the XML directly
+      PushbackInputStream pin = new PushbackInputStream(new SourceInputStream(in), ZIP_MAGIC.length);
+      if (! startsWith(pin, ZIP_MAGIC)) {
+         int first = pin.read();
+         if (first < 0) {
+            throw new ConversionException("Input is empty.");
+         }
+         pin.unread(first);
+         parser.parse(new LimitedInputStream(pin, _maxContentSize, "XML document"));
+         return;
+      }
+
+      // Find the "content.xml" file in the ZIP file; the entries before it
+      // are skipped by reading them, so they count towards the limit too
+      ZipInputStream zin = new ZipInputStream(pin);
+      LimitedInputStream content = new LimitedInputStream(zin, _maxContentSize, "Inflated ZIP content");
+      ZipEntry entry = null, contentEntry = null;
+      try {
+         do {
+            entry = zin.getNextEntry();
+            if (entry != null && !entry.isDirectory() && "content.xml".equals(entry.getName())) {
+               contentEntry = entry;
+            } else if (entry != null) {
+               content.drain();
+            }
+         } while (entry != null && contentEntry == null);
+      } catch (LimitExceededException e) {
+         throw new ConversionException(e.getMessage(), e);
+      } catch (StreamFailedException e) {
+         throw e;
+      } catch (InterruptedIOException e) {
+         throw e;
+      } catch (IOException e) {
+         throw new ConversionException("Failed to read ZIP stream.", e);
+      }
 
       // No content.xml file found, fail
       if (contentEntry == null) {
@@ -88,7 +613,26 @@ public final class Converter extends Object {
       }
 
       // Process the unzipped content.xml while it's unzipped (using SAX)
-      new XMLParser(out).parse(zin);
+      parser.parse(content);
+   }
+
+   /**
+    * Determines whether the specified stream starts with the specified
+    * bytes. The bytes read are pushed back, so the stream is left as it was.
+    */
+   private static boolean startsWith(PushbackInputStream in, byte[] prefix)
+   throws IOException {
+      byte[] head = new byte[prefix.length];
+      int count = 0;
+      while (count < head.length) {
+         int n = in.read(head, count, head.length - count);
+         if (n < 0) {
+            break;
+         }
+         count += n;
+      }
+      in.unread(head, 0, count);
+      return count == prefix.length && Arrays.equals(head, prefix);
    }
 
 
@@ -96,6 +640,248 @@ public final class Converter extends Object {
    // Inner classes
    //-------------------------------------------------------------------------
 
+   /**
+    * Input stream that fails once more than a fixed number of bytes has
+    * been read from it. Used to guard against decompression bombs. It also
+    * fails as soon as the thread is interrupted, so skipping a large ZIP
+    * entry can be cancelled too.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class LimitedInputStream extends FilterInputStream {
+
+      /**
+       * Constructs a new <code>LimitedInputStream</code>.
+       *
+       * @param in
+       *    the stream to read from, cannot be <code>null</code>.
+       *
+       * @param max
+       *    the maximum number of bytes, or <code>0</code> for no limit.
+       *
+       * @param what
+       *    description of the content, for the error message,
+       *    cannot be <code>null</code>.
+       */
+      LimitedInputStream(InputStream in, long max, String what) {
+         super(in);
+         _max  = max;
+         _what = what;
+      }
+
+      /**
+       * The maximum number of bytes, or <code>0</code> for no limit.
+       */
+      private final long _max;
+
+      /**
+       * Description of the content, for the error message.
+       */
+      private final String _what;
+
+      /**
+       * The number of bytes read so far.
+       */
+      private long _count;
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            count(1);
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            count(n);
+         }
+         return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         long skipped = super.skip(n);
+         count(skipped);
+         return skipped;
+      }
+
+      /**
+       * Reads and discards the remainder of the underlying stream.
+       */
+      void drain() throws IOException {
+         byte[] buffer = new byte[8192];
+         while (read(buffer, 0, buffer.length) >= 0) {
+            // discard
+         }
+      }
+
+      private void count(long n) throws IOException {
+         if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Conversion was interrupted.");
+         }
+         _count += n;
+         if (_max > 0L && _count > _max) {
+            throw new LimitExceededException(_what + " exceeds the limit of " + _max + " byte(s).");
+         }
+      }
+   }
+
+   /**
+    * Input stream that marks the I/O errors of the underlying stream as
+    * {@link StreamFailedException}s, so they can be told apart from errors
+    * in the document content itself. A read that is aborted because the
+    * thread was interrupted is reported as an
+    * {@link InterruptedIOException}.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class SourceInputStream extends FilterInputStream {
+
+      /**
+       * Constructs a new <code>SourceInputStream</code>.
+       *
+       * @param in
+       *    the stream to read from, cannot be <code>null</code>.
+       */
+      SourceInputStream(InputStream in) {
+         super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+         try {
+            return super.read();
+         } catch (IOException e) {
+            throw failure(e);
+         }
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         try {
+            return super.read(b, off, len);
+         } catch (IOException e) {
+            throw failure(e);
+         }
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         try {
+            return super.skip(n);
+         } catch (IOException e) {
+            throw failure(e);
+         }
+      }
+
+      private static IOException failure(IOException e) {
+         if (e instanceof InterruptedIOException) {
+            return e;
+         } else if (e instanceof ClosedByInterruptException) {
+            InterruptedIOException interrupted = new InterruptedIOException("Conversion was interrupted.");
+            interrupted.initCause(e);
+            return interrupted;
+         } else {
+            return new StreamFailedException("Failed to read input due to an I/O error.", e);
+         }
+      }
+   }
+
+   /**
+    * I/O exception that indicates reading the input or writing the output
+    * failed for a reason that has nothing to do with the document content.
+    * It is passed on by the {@link XMLParser} as an {@link IOException},
+    * instead of being turned into a {@link ConversionException}.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class StreamFailedException extends IOException {
+
+      private static final long serialVersionUID = 3871209546615420931L;
+
+      StreamFailedException(String detail, Throwable cause) {
+         super(detail, cause);
+      }
+   }
+
+   /**
+    * I/O exception that indicates a limit on the input was exceeded.
+    * It is unwrapped by the {@link XMLParser} and rethrown as a
+    * {@link ConversionException}.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class LimitExceededException extends IOException {
+
+      private static final long serialVersionUID = 6480187245902163327L;
+
+      LimitExceededException(String detail) {
+         super(detail);
+      }
+   }
+
+   /**
+    * Interrupts a converting thread once the time limit expires.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Watchdog implements Runnable {
+
+      /**
+       * Constructs a new <code>Watchdog</code>.
+       *
+       * @param thread
+       *    the converting thread, cannot be <code>null</code>.
+       */
+      Watchdog(Thread thread) {
+         _thread = thread;
+      }
+
+      /**
+       * The converting thread.
+       */
+      private final Thread _thread;
+
+      /**
+       * Whether the conversion has finished.
+       */
+      private boolean _stopped;
+
+      /**
+       * Whether the time limit expired before the conversion finished.
+       */
+      private boolean _expired;
+
+      public synchronized void run() {
+         if (! _stopped) {
+            _expired = true;
+            _thread.interrupt();
+         }
+      }
+
+      /**
+       * Stops this watchdog. Must be called from the converting thread. If
+       * the watchdog interrupted the thread, the interrupt status is
+       * cleared again.
+       *
+       * @return
+       *    <code>true</code> if the time limit expired.
+       */
+      synchronized boolean stop() {
+         if (! _stopped) {
+            _stopped = true;
+            if (_expired) {
+               Thread.interrupted();
+            }
+         }
+         return _expired;
+      }
+   }
+
    /**
     * SAX handler for producing the CSV output.
     *
@@ -125,6 +911,12 @@ public final class Converter extends Object {
        */
       private static final String TABLE_NS = "urn:oasis:names:tc:opendocument:xmlns:table:1.0";
 
+      /**
+       * The SAX feature that makes the parser reject any document with a
+       * DOCTYPE declaration, and with it any entity declaration.
+       */
+      private static final String DISALLOW_DOCTYPE_FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
+
 
       //----------------------------------------------------------------------
       // Constructors
@@ -139,10 +931,23 @@ public final class Converter extends Object {
        *    the {@link OutputStream} to send the CSV text output to,
        *    cannot be <code>null</code>.
        *
+       * @param memoryBudget
+       *    the maximum number of bytes of a row to keep in memory, beyond
+       *    which the row spills to disk, must be &gt;= 0.
+       *
+       * @param maxCellsPerRow
+       *    the maximum number of cells per row, or <code>0</code> for no
+       *    limit.
+       *
+       * @param maxCells
+       *    the maximum total number of cells, or <code>0</code> for no
+       *    limit.
+       *
        * @throws IllegalArgumentException
-       *    if <code>out == null</code>.
+       *    if <code>out == null || memoryBudget &lt; 0</code>.
        */
-      XMLParser(OutputStream out) throws IllegalArgumentException {
+      XMLParser(OutputStream out, int memoryBudget, int maxCellsPerRow, long maxCells)
+      throws IllegalArgumentException {
 
          // Check preconditions
          if (out == null) {
@@ -150,7 +955,11 @@ public final class Converter extends Object {
          }
 
          // Initialize instance fields
-         _out = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+         _target         = new BufferedOutputStream(out);
+         _row            = new SpillBuffer(memoryBudget);
+         _out            = new OutputStreamWriter(_row, Charset.forName("UTF-8"));
+         _maxCellsPerRow = maxCellsPerRow;
+         _maxCells       = maxCells;
       }
       
 
@@ -159,11 +968,49 @@ public final class Converter extends Object {
       //----------------------------------------------------------------------
 
       /**
-       * The character-based output stream. This is where the CSV output goes.
+       * The byte-based output stream. This is where completed rows go.
+       * Never <code>null</code>.
+       */
+      private final OutputStream _target;
+
+      /**
+       * The buffer holding the encoded CSV text of the current row.
        * Never <code>null</code>.
        */
+      private final SpillBuffer _row;
+
+      /**
+       * The character-based output stream. This is where the CSV output of
+       * the current row goes. Never <code>null</code>.
+       */
       private final Writer _out;
 
+      /**
+       * The comparison with a previous conversion, or <code>null</code> if
+       * all rows are to be emitted.
+       */
+      private RowDiff _diff;
+
+      /**
+       * The row index to record rows in, or <code>null</code> if none.
+       */
+      private RowIndex _rowIndex;
+
+      /**
+       * The per-column statistics to collect, or <code>null</code> if none.
+       */
+      private Statistics _statistics;
+
+      /**
+       * The maximum number of cells per row, or <code>0</code> for no limit.
+       */
+      private final int _maxCellsPerRow;
+
+      /**
+       * The maximum total number of cells, or <code>0</code> for no limit.
+       */
+      private final long _maxCells;
+
       /**
        * The exception, in case of an error (fatal or not).
        */
@@ -174,14 +1021,51 @@ public final class Converter extends Object {
       private boolean _insideCellText;
       private boolean _hadCells;
       private boolean _stringValueType;
+      private int     _rowCellCount;
+      private long    _cellCount;
+      private int     _sheetCount;
+      private String  _cellValueType;
+      private String  _cellValue;
 
 
       //----------------------------------------------------------------------
       // Methods
       //----------------------------------------------------------------------
 
+      /**
+       * Makes this parser emit only the rows that changed since a previous
+       * conversion.
+       *
+       * @param diff
+       *    the comparison with the previous conversion,
+       *    or <code>null</code> to emit all rows.
+       */
+      void setRowDiff(RowDiff diff) {
+         _diff = diff;
+      }
+
+      /**
+       * Makes this parser record the position of each sheet and row.
+       *
+       * @param rowIndex
+       *    the row index to record rows in, or <code>null</code> if none.
+       */
+      void setRowIndex(RowIndex rowIndex) {
+         _rowIndex = rowIndex;
+      }
+
+      /**
+       * Makes this parser collect per-column statistics.
+       *
+       * @param statistics
+       *    the statistics to collect, or <code>null</code> if none.
+       */
+      void setStatistics(Statistics statistics) {
+         _statistics = statistics;
+      }
+
       void parse(InputStream in)
-      throws IllegalArgumentException, ConversionException {
+      throws IllegalArgumentException, IOException, ConversionException {
 
          // Check preconditions
          if (in == null) {
@@ -192,36 +1076,73 @@ public final class Converter extends Object {
          Throwable cause;
          try {
             XMLReader xmlReader = XMLReaderFactory.createXMLReader();
+            xmlReader.setFeature(DISALLOW_DOCTYPE_FEATURE, true);
             xmlReader.setContentHandler(this);
             xmlReader.setErrorHandler(this);
+            xmlReader.setEntityResolver(this);
             xmlReader.parse(new InputSource(in));
             cause = null;
 
          // Catch any exceptions thrown directly
          } catch (Throwable e) {
             cause = e;
+
+         // Always get rid of any spilled row data
+         } finally {
+            _row.close();
          }
 
          // Also consider exceptions thrown deeper down
          cause = (cause == null) ? _exception : cause;
 
+         // Exceeded limits are reported as such, so they are easy to spot,
+         // while I/O errors and interruptions are not the document's fault
+         for (Throwable t = cause; t != null; t = nextCause(t)) {
+            if (t instanceof LimitExceededException) {
+               throw new ConversionException(t.getMessage(), t);
+            } else if (t instanceof StreamFailedException || t instanceof InterruptedIOException) {
+               throw (IOException) t;
+            }
+         }
+
          // Wrap and rethrow if there was any exception
          if (cause != null) {
-            throw new ConversionException("Failed to process \"content.xml\" entry.", cause);
+            throw new ConversionException("Failed to process document content.", cause);
          }
 
-         // Flush and close the output stream
+         // Report the rows that no longer exist
+         if (_diff != null) {
+            _diff.finish(_target);
+         }
+
+         // Flush and close the output stream; failing to do so means the
+         // output is incomplete
          try {
-            _out.flush();
-         } catch (Throwable e) {
-            // ignore
+            _target.flush();
          } finally {
-            try {
-               _out.close();
-            } catch (Throwable e) {
-               // ignore
+            _target.close();
+         }
+      }
+
+      private static Throwable nextCause(Throwable t) {
+         if (t instanceof SAXException) {
+            Exception wrapped = ((SAXException) t).getException();
+            if (wrapped != null) {
+               return wrapped;
             }
          }
+         return t.getCause();
+      }
+
+      /**
+       * Refuses to resolve any external entity or DTD. ODS content never
+       * has a DOCTYPE, and resolving one would read data that bypasses the
+       * content size limit and the time limit.
+       */
+      @Override
+      public InputSource resolveEntity(String publicId, String systemId)
+      throws SAXException {
+         throw new SAXException("External entity \"" + systemId + "\" is not allowed.");
       }
 
       @Override
@@ -253,13 +1174,32 @@ public final class Converter extends Object {
       public void startElement(String uri, String localName, String qName, Attributes atts)
       throws SAXException {
 
-         // Start of table cell
-         if (TABLE_NS.equals(uri) && "table-row".equals(localName)) {
-            _insideRow = true;
-            _hadCells  = false;
+         checkCancelled();
+
+         // Start of sheet
+         if (TABLE_NS.equals(uri) && "table".equals(localName)) {
+            _sheetCount++;
+            String name = atts.getValue(TABLE_NS, "name");
+            name = (name == null) ? UNNAMED_SHEET + _sheetCount : name;
+            if (_rowIndex != null) {
+               _rowIndex.startSheet(name);
+            }
+            if (_diff != null) {
+               _diff.startSheet(name);
+            }
+            if (_statistics != null) {
+               _statistics.startSheet(name);
+            }
+
+         // Start of table row
+         } else if (TABLE_NS.equals(uri) && "table-row".equals(localName)) {
+            _insideRow    = true;
+            _hadCells     = false;
+            _rowCellCount = 0;
 
          // Start of table cell
          } else if (TABLE_NS.equals(uri) && "table-cell".equals(localName) && _insideRow) {
+            countCell();
             if (_hadCells) {
                output(',');
             }
@@ -275,6 +1215,15 @@ public final class Converter extends Object {
             }
             _insideCell = true;
 
+            // Remember the typed value for the statistics
+            if (_statistics != null) {
+               _cellValueType = _stringValueType ? null : valueType;
+               _cellValue     = _stringValueType ? null
+                              : "float".equals(valueType) ? atts.getValue(OFFICE_NS, "value")
+                              : atts.getValue(OFFICE_NS, "date-value");
+               _statistics.startCell();
+            }
+
          // Start of cell text inside table cell
          } else if (TEXT_NS.equals(uri) && "p".equals(localName) && _insideCell) {
             _insideCellText = true;
@@ -285,16 +1234,25 @@ public final class Converter extends Object {
       public void endElement(String uri, String localName, String qName)
       throws SAXException {
 
+         checkCancelled();
+
          // End of table row: append a newline in the output
          if (TABLE_NS.equals(uri) && "table-row".equals(localName) && _insideRow) {
             // TODO: Only if we had any row data
             output('\n');
+            flushRow();
             _insideRow = false;
+            if (_statistics != null) {
+               _statistics.endRow();
+            }
 
          // End of table cell
          } else if (TABLE_NS.equals(uri) && "table-cell".equals(localName) && _insideCell) {
             _insideCell = false;
             _hadCells   = true;
+            if (_statistics != null) {
+               _statistics.endCell(_rowCellCount - 1, _cellValueType, _cellValue);
+            }
 
          // Closing text element inside table cell
          } else if (TEXT_NS.equals(uri) && "p".equals(localName) && _insideCellText) {
@@ -306,6 +1264,13 @@ public final class Converter extends Object {
       public void characters(char[] ch, int start, int length)
       throws SAXException {
 
+         checkCancelled();
+
+         // Collect the text of untyped cells for the statistics
+         if (_statistics != null && _insideCellText && _stringValueType) {
+            _statistics.text(ch, start, length);
+         }
+
          // Short-circuit 
          if (! (_insideCellText && _stringValueType)) {
             return;
@@ -330,11 +1295,59 @@ public final class Converter extends Object {
          output('"');
       }
 
+      /**
+       * Fails if the converting thread was interrupted, which is also how
+       * the time limit is enforced. Called from every SAX callback, so a
+       * conversion can be cancelled no matter what the document looks like.
+       */
+      private void checkCancelled() throws SAXException {
+         if (Thread.currentThread().isInterrupted()) {
+            throw new SAXException(new InterruptedIOException("Conversion was interrupted."));
+         }
+      }
+
+      private void countCell() throws SAXException {
+         _rowCellCount++;
+         _cellCount++;
+         if (_maxCellsPerRow > 0 && _rowCellCount > _maxCellsPerRow) {
+            throw new SAXException(new LimitExceededException("Row contains more than " + _maxCellsPerRow + " cell(s)."));
+         } else if (_maxCells > 0L && _cellCount > _maxCells) {
+            throw new SAXException(new LimitExceededException("Document contains more than " + _maxCells + " cell(s)."));
+         }
+      }
+
+      /**
+       * Writes the buffered row to the target output stream and clears the
+       * buffer for the next row.
+       */
+      private void flushRow() throws SAXException {
+         try {
+            _out.flush();
+            if (_diff == null) {
+               long length = _row.size();
+               _row.writeTo(_target);
+               if (_rowIndex != null) {
+                  _rowIndex.addRow(length);
+               }
+            } else {
+               _row.writeTo(_diff.hashStream());
+               String prefix = _diff.endRow();
+               if (prefix != null) {
+                  _target.write(prefix.getBytes("UTF-8"));
+                  _row.writeTo(_target);
+               }
+            }
+            _row.reset();
+         } catch (IOException cause) {
+            throw new SAXException(new StreamFailedException("Failed to write row due to an I/O error.", cause));
+         }
+      }
+
       private void output(char c) throws SAXException {
          try {
             _out.write(c);
          } catch (IOException cause) {
-            throw new SAXException("Failed to write character due to an I/O error.", cause);
+            throw new SAXException(new StreamFailedException("Failed to write character due to an I/O error.", cause));
          }
       }
 
@@ -342,7 +1355,7 @@ public final class Converter extends Object {
          try {
             _out.write(s, 0, s.length());
          } catch (IOException cause) {
-            throw new SAXException("Failed to write character due to an I/O error.", cause);
+            throw new SAXException(new StreamFailedException("Failed to write character due to an I/O error.", cause));
          }
       }
    }
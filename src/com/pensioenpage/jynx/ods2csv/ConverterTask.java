@@ -2,20 +2,23 @@
 package com.pensioenpage.jynx.ods2csv;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import static org.apache.tools.ant.Project.MSG_ERR;
 import static org.apache.tools.ant.Project.MSG_VERBOSE;
-import org.apache.tools.ant.taskdefs.Execute;
-import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
-import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
 import org.apache.tools.ant.taskdefs.MatchingTask;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
 
 /**
  * An Apache Ant task for converting a number of ODS files to CSV files.
@@ -33,11 +36,93 @@ import org.apache.tools.ant.taskdefs.MatchingTask;
  *
  * <dt>includes
  * <dd>The files to match in the source directory.
- *     Optional, defaults to <code>*.less</code>.
+ *     Optional, defaults to <code>*.ods,*.fods</code> if no include
+ *     patterns are set at all.
  *
  * <dt>excludes
  * <dd>The files to exclude, even if they are matched by the include filter.
  *     Optional, default is empty.
+ *
+ * <dt>sync
+ * <dd>Whether to force each output file to disk before it replaces the
+ *     previous output file. Output is always written to a temporary file
+ *     first; this option makes it crash-safe as well.
+ *     Optional, defaults to <code>false</code>.
+ *
+ * <dt>diff
+ * <dd>Whether to write only the rows that were added or removed since the
+ *     previous conversion, each preceded by a change marker, the sheet name
+ *     and the row number. Rows are matched by content, so a modified row is
+ *     reported as removed and added. A row hash index is kept next to each
+ *     output file, with the extension <code>.rowhash</code>.
+ *     Optional, defaults to <code>false</code>.
+ *
+ * <dt>index
+ * <dd>Whether to write a row index next to each output file, with the
+ *     extension <code>.rowidx</code>, for random access into the output
+ *     using {@link MappedCsv}. Cannot be combined with <code>diff</code>.
+ *     Optional, defaults to <code>false</code>.
+ *
+ * <dt>statistics
+ * <dd>Whether to write per-column statistics next to each output file, as a
+ *     JSON document with the extension <code>.stats.json</code>. These
+ *     include the inferred type of each column, so a table schema can be
+ *     derived without scanning the output. Cannot be combined with
+ *     <code>diff</code>.
+ *     Optional, defaults to <code>false</code>.
+ *
+ * <dt>compress
+ * <dd>The compression to apply to the output files: <code>none</code> or
+ *     <code>gzip</code>. With <code>gzip</code>, the output files get the
+ *     extension <code>.csv.gz</code> and the CSV text is compressed while
+ *     it is produced. Cannot be combined with <code>index</code>.
+ *     Optional, defaults to <code>none</code>.
+ *
+ * <dt>compressThreads
+ * <dd>The number of threads to compress each output file on, in blocks.
+ *     Optional, defaults to <code>1</code>.
+ *
+ * <dt>timeout
+ * <dd>The maximum number of milliseconds a single file may take to convert.
+ *     A conversion that takes longer is cancelled and counts as failed.
+ *     Optional, defaults to <code>0</code>, meaning no limit.
+ *
+ * <dt>failOnError
+ * <dd>Whether the build fails if any file fails to convert. If not, the
+ *     remaining files are still converted in either case.
+ *     Optional, defaults to <code>true</code>.
+ *
+ * <dt>quarantineDir
+ * <dd>The directory to move input files to that fail to convert because
+ *     of their content, so they are not tried again on the next run. Files
+ *     that fail because of an I/O error or an interruption are left in
+ *     place, and so are all files while watching. Must differ from the
+ *     source directory.
+ *     Optional, by default failed input files are left in place.
+ *
+ * <dt>report
+ * <dd>The file to write a summary report to, as CSV, with for each input
+ *     file the outcome (<code>converted</code>, <code>skipped</code> or
+ *     <code>failed</code>), the duration in milliseconds and the failure
+ *     reason, if any. In watch mode the report covers the initial
+ *     conversion only.
+ *     Optional, by default no report is written.
+ *
+ * <dt>watch
+ * <dd>Whether to keep watching the source directory after the initial
+ *     conversion, reconverting files as they change. Only files directly
+ *     in the source directory are watched. The task then only ends when
+ *     the build is interrupted.
+ *     Optional, defaults to <code>false</code>.
+ *
+ * <dt>threads
+ * <dd>The number of files to convert concurrently in watch mode.
+ *     Optional, defaults to the number of available processors.
+ *
+ * <dt>debounce
+ * <dd>The number of milliseconds a changed file must be left alone before
+ *     it is reconverted in watch mode.
+ *     Optional, defaults to <code>200</code>.
  * </dl>
  *
  * <p>This task supports more parameters and contained elements, inherited
@@ -140,6 +225,49 @@ public final class ConverterTask extends MatchingTask {
       }
    }
 
+   /**
+    * Returns the reason a conversion failed, for the summary report. This is
+    * the message of the exception, followed by that of its root cause.
+    *
+    * @param exception
+    *    the exception that caused the failure, cannot be <code>null</code>.
+    *
+    * @return
+    *    the reason, never <code>null</code>.
+    */
+   private static String reason(Throwable exception) {
+      String message = exception.getMessage();
+      message = isEmpty(message) ? exception.getClass().getName() : message;
+
+      Throwable root = exception;
+      while (root.getCause() != null && root.getCause() != root) {
+         root = root.getCause();
+      }
+      String rootMessage = root.getMessage();
+      if (root != exception && ! isEmpty(rootMessage) && ! message.equals(rootMessage)) {
+         message += " (" + rootMessage + ')';
+      }
+      return message;
+   }
+
+   /**
+    * Adds a record for a single input file to the summary report.
+    */
+   private static void addToReport(StringBuilder report, String inFileName, String status, long duration, String reason) {
+      report.append(csvField(inFileName)).append(',').append(status).append(',').append(duration).append(',');
+      if (reason != null) {
+         report.append(csvField(reason));
+      }
+      report.append('\n');
+   }
+
+   private static String csvField(String s) {
+      if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+         return s;
+      }
+      return '"' + s.replace("\"", "\"\"") + '"';
+   }
+
 
    //-------------------------------------------------------------------------
    // Constructors
@@ -149,7 +277,7 @@ public final class ConverterTask extends MatchingTask {
     * Constructs a new <code>ConverterTask</code> object.
     */
    public ConverterTask() {
-      setIncludes("*.ods");
+      // empty
    }
 
 
@@ -158,7 +286,8 @@ public final class ConverterTask extends MatchingTask {
    //-------------------------------------------------------------------------
 
    /**
-    * The directory to read <code>.ods</code> files from.
+    * The directory to read <code>.ods</code> and <code>.fods</code> files
+    * from.
     * See {@link #setDir(File)}.
     */
    private File _sourceDir;
@@ -169,6 +298,84 @@ public final class ConverterTask extends MatchingTask {
     */
    private File _destDir;
 
+   /**
+    * Flag that indicates whether output files are forced to disk.
+    * See {@link #setSync(boolean)}.
+    */
+   private boolean _sync;
+
+   /**
+    * Flag that indicates whether only changed rows are written.
+    * See {@link #setDiff(boolean)}.
+    */
+   private boolean _diff;
+
+   /**
+    * Flag that indicates whether a row index is written.
+    * See {@link #setIndex(boolean)}.
+    */
+   private boolean _index;
+
+   /**
+    * Flag that indicates whether per-column statistics are written.
+    * See {@link #setStatistics(boolean)}.
+    */
+   private boolean _statistics;
+
+   /**
+    * The compression to apply to output files, <code>"none"</code> or
+    * <code>"gzip"</code>. See {@link #setCompress(String)}.
+    */
+   private String _compress = "none";
+
+   /**
+    * The number of threads to compress each output file on.
+    * See {@link #setCompressThreads(int)}.
+    */
+   private int _compressThreads = 1;
+
+   /**
+    * The maximum duration of a single conversion, in milliseconds, or
+    * <code>0</code> for no limit. See {@link #setTimeout(long)}.
+    */
+   private long _timeout;
+
+   /**
+    * Flag that indicates whether the build fails if any file fails to
+    * convert. See {@link #setFailOnError(boolean)}.
+    */
+   private boolean _failOnError = true;
+
+   /**
+    * The directory to move failed input files to, or <code>null</code>.
+    * See {@link #setQuarantineDir(File)}.
+    */
+   private File _quarantineDir;
+
+   /**
+    * The file to write the summary report to, or <code>null</code>.
+    * See {@link #setReport(File)}.
+    */
+   private File _reportFile;
+
+   /**
+    * Flag that indicates whether to watch the source directory for changes.
+    * See {@link #setWatch(boolean)}.
+    */
+   private boolean _watch;
+
+   /**
+    * The number of worker threads in watch mode, or <code>0</code> for the
+    * default. See {@link #setThreads(int)}.
+    */
+   private int _threads;
+
+   /**
+    * The debounce delay in watch mode, in milliseconds.
+    * See {@link #setDebounce(long)}.
+    */
+   private long _debounce = DirectoryWatcher.DEFAULT_DEBOUNCE;
+
 
    //-------------------------------------------------------------------------
    // Methods
@@ -195,9 +402,166 @@ public final class ConverterTask extends MatchingTask {
       _destDir = dir;
    }
 
+   /**
+    * Sets whether each output file should be forced to disk before it
+    * replaces the previous output file. The default is <code>false</code>.
+    *
+    * @param sync
+    *    <code>true</code> to fsync output files,
+    *    <code>false</code> to leave that to the operating system.
+    */
+   public void setSync(boolean sync) {
+      _sync = sync;
+   }
+
+   /**
+    * Sets whether only the rows that changed since the previous conversion
+    * should be written. The default is <code>false</code>.
+    *
+    * @param diff
+    *    <code>true</code> to write only changed rows, preceded by a change
+    *    marker column, a sheet name column and a row number column,
+    *    <code>false</code> to write all rows.
+    */
+   public void setDiff(boolean diff) {
+      _diff = diff;
+   }
+
+   /**
+    * Sets whether a row index should be written next to each output file.
+    * The default is <code>false</code>.
+    *
+    * @param index
+    *    <code>true</code> to write a row index, see {@link RowIndex},
+    *    <code>false</code> otherwise.
+    */
+   public void setIndex(boolean index) {
+      _index = index;
+   }
+
+   /**
+    * Sets whether per-column statistics should be written next to each
+    * output file. The default is <code>false</code>.
+    *
+    * @param statistics
+    *    <code>true</code> to write statistics,
+    *    <code>false</code> otherwise.
+    */
+   public void setStatistics(boolean statistics) {
+      _statistics = statistics;
+   }
+
+   /**
+    * Sets the compression to apply to the output files. The default is
+    * <code>"none"</code>.
+    *
+    * @param compress
+    *    <code>"none"</code> or <code>"gzip"</code>.
+    */
+   public void setCompress(String compress) {
+      _compress = compress;
+   }
+
+   /**
+    * Sets the number of threads to compress each output file on. The
+    * default is 1.
+    *
+    * @param threads
+    *    the number of threads, must be &gt;= 1.
+    */
+   public void setCompressThreads(int threads) {
+      _compressThreads = threads;
+   }
+
+   /**
+    * Sets the maximum duration of the conversion of a single file. The
+    * default is <code>0</code>, meaning no limit.
+    *
+    * @param timeout
+    *    the maximum duration in milliseconds, or <code>0</code> for no
+    *    limit; must be &gt;= 0.
+    */
+   public void setTimeout(long timeout) {
+      _timeout = timeout;
+   }
+
+   /**
+    * Sets whether the build should fail if any file fails to convert. The
+    * default is <code>true</code>.
+    *
+    * @param failOnError
+    *    <code>true</code> to fail the build after all files have been
+    *    considered, <code>false</code> to only log the failures.
+    */
+   public void setFailOnError(boolean failOnError) {
+      _failOnError = failOnError;
+   }
+
+   /**
+    * Sets the directory to move input files to that fail to convert because
+    * of their content. By default, failed input files are left in place.
+    *
+    * @param dir
+    *    the location of the quarantine directory, or <code>null</code>.
+    */
+   public void setQuarantineDir(File dir) {
+      _quarantineDir = dir;
+   }
+
+   /**
+    * Sets the file to write a summary report to. By default, no report is
+    * written.
+    *
+    * @param report
+    *    the location of the report file, or <code>null</code>.
+    */
+   public void setReport(File report) {
+      _reportFile = report;
+   }
+
+   /**
+    * Sets whether the source directory should be watched for changes after
+    * the initial conversion. The default is <code>false</code>.
+    *
+    * @param watch
+    *    <code>true</code> to keep reconverting changed files until the build
+    *    is interrupted, <code>false</code> to convert only once.
+    */
+   public void setWatch(boolean watch) {
+      _watch = watch;
+   }
+
+   /**
+    * Sets the number of worker threads used in watch mode. The default is
+    * the number of available processors.
+    *
+    * @param threads
+    *    the number of worker threads, must be &gt;= 1.
+    */
+   public void setThreads(int threads) {
+      _threads = threads;
+   }
+
+   /**
+    * Sets how long a changed file must be left alone before it is
+    * reconverted in watch mode. The default is 200 milliseconds.
+    *
+    * @param debounce
+    *    the debounce delay in milliseconds, must be &gt;= 0.
+    */
+   public void setDebounce(long debounce) {
+      _debounce = debounce;
+   }
+
    @Override
    public void execute() throws BuildException {
 
+      // Include patterns add up, so the default applies only if none are set
+      String[] includes = fileset.mergeIncludes(getProject());
+      if (includes == null || includes.length == 0) {
+         setIncludes("*.ods,*.fods");
+      }
+
       // Source directory defaults to current directory
       if (_sourceDir == null) {
          _sourceDir = getProject().getBaseDir();
@@ -211,13 +575,73 @@ public final class ConverterTask extends MatchingTask {
       // Check the directories
       checkDir("Source directory",      _sourceDir,  true, false);
       checkDir("Destination directory",   _destDir, false,  true);
+      if (_quarantineDir != null) {
+         checkDir("Quarantine directory", _quarantineDir, false, true);
+      }
+
+      // Check the other settings
+      if (_diff && _index) {
+         throw new BuildException("The diff and index options cannot be combined.");
+      } else if (_diff && _statistics) {
+         throw new BuildException("The diff and statistics options cannot be combined.");
+      } else if (! "none".equals(_compress) && ! "gzip".equals(_compress)) {
+         throw new BuildException("Compression " + quote(_compress) + " is not supported, use \"none\" or \"gzip\".");
+      } else if ("gzip".equals(_compress) && _index) {
+         throw new BuildException("The index and compress options cannot be combined.");
+      } else if (_compressThreads < 1) {
+         throw new BuildException("Number of compression threads (" + _compressThreads + ") is less than 1.");
+      } else if (_timeout < 0L) {
+         throw new BuildException("Timeout (" + _timeout + " ms) is negative.");
+      } else if (_quarantineDir != null && _quarantineDir.getAbsoluteFile().equals(_sourceDir.getAbsoluteFile())) {
+         throw new BuildException("Quarantine directory cannot be the source directory.");
+      } else if (_threads < 0) {
+         throw new BuildException("Number of threads (" + _threads + ") is negative.");
+      } else if (_debounce < 0L) {
+         throw new BuildException("Debounce delay (" + _debounce + " ms) is negative.");
+      }
+
+      // In watch mode, start listening before the initial conversion, so
+      // no changes are missed
+      Converter core = new Converter();
+      core.setTimeout(_timeout);
+      FileConverter converter = new FileConverter(core);
+      converter.setSync(_sync);
+      converter.setDiff(_diff);
+      converter.setRowIndex(_index);
+      converter.setStatistics(_statistics);
+      converter.setGzip("gzip".equals(_compress));
+      converter.setCompressionThreads(_compressThreads);
+      PatternFilter filter = new PatternFilter();
+      converter.setInputFilter(filter);
+      DirectoryWatcher watcher = null;
+      if (_watch) {
+         int threads = (_threads > 0) ? _threads : Runtime.getRuntime().availableProcessors();
+         try {
+            watcher = new DirectoryWatcher(_sourceDir, _destDir, converter, filter, new LogListener(), threads, _debounce);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to watch source directory " + quote(_sourceDir.getPath()) + '.', cause);
+         }
+      }
 
       // Preparations done, consider each individual file for processing
       log("Converting from " + _sourceDir.getPath() + " to " + _destDir.getPath() + '.', MSG_VERBOSE);
       long start = System.currentTimeMillis();
       int failedCount = 0, successCount = 0, skippedCount = 0;
-      Converter converter = new Converter();
-      for (String inFileName : getDirectoryScanner(_sourceDir).getIncludedFiles()) {
+      StringBuilder report = new StringBuilder("file,status,duration,reason\n");
+      String[] inFileNames = getDirectoryScanner(_sourceDir).getIncludedFiles();
+
+      // Clean up after any earlier conversion that was killed halfway,
+      // listing the destination directory only once
+      List<String> outFileNames = new ArrayList<String>(inFileNames.length);
+      for (String inFileName : inFileNames) {
+         outFileNames.add(converter.outputFileName(new File(inFileName).getName()));
+      }
+      int removedCount = FileConverter.removeTempFiles(_destDir, outFileNames);
+      if (removedCount > 0) {
+         log("Removed " + removedCount + " stale temporary file(s) from " + quote(_destDir.getPath()) + '.', MSG_VERBOSE);
+      }
+
+      for (String inFileName : inFileNames) {
 
          // Make sure the input file exists
          File inFile = new File(_sourceDir, inFileName);
@@ -227,25 +651,33 @@ public final class ConverterTask extends MatchingTask {
 
          // Some preparations related to the input file and output file
          long     thisStart = System.currentTimeMillis();
-         String outFileName = inFile.getName().replaceFirst("\\.ods$", ".csv");
+         String outFileName = converter.outputFileName(inFile.getName());
          File       outFile = new File(_destDir, outFileName);
-         String outFilePath = outFile.getPath();
          String  inFilePath = inFile.getPath();
 
+         // Refuse input files that share their output file with another one
+         Throwable exception = null;
+         try {
+            converter.checkConflicts(inFile);
+         } catch (IOException e) {
+            exception = e;
+         }
+
          // Skip this file is the output file exists and is newer
-         if (outFile.exists() && (outFile.lastModified() > inFile.lastModified())) {
+         if (exception == null && outFile.exists() && (outFile.lastModified() > inFile.lastModified())) {
             log("Skipping " + quote(inFileName) + " because output file is newer.", MSG_VERBOSE); 
             skippedCount++;
+            addToReport(report, inFileName, "skipped", 0L, null);
             continue;
          }
 
-         // Convert
-         Throwable exception;
-         try {
-            converter.convert(new FileInputStream(inFile), new FileOutputStream(outFile));
-            exception = null;
-         } catch (Throwable e) {
-            exception = e;
+         // Convert, never leaving a partial output file behind
+         if (exception == null) {
+            try {
+               converter.convert(inFile, outFile);
+            } catch (Throwable e) {
+               exception = e;
+            }
          }
 
          // Log the result for this individual file
@@ -260,18 +692,150 @@ public final class ConverterTask extends MatchingTask {
             }
             log(logMessage, MSG_ERR);
             failedCount++;
+            addToReport(report, inFileName, "failed", thisDuration, reason(exception));
+            if (exception instanceof ConversionException) {
+               quarantine(inFile);
+            }
          } else {
             log("Converted " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
             successCount++;
+            addToReport(report, inFileName, "converted", thisDuration, null);
          }
       }
 
+      // Write the summary report
+      if (_reportFile != null) {
+         writeReport(report);
+      }
+
       // Log the total result
       long duration = System.currentTimeMillis() - start;
-      if (failedCount > 0) {
+      if (failedCount > 0 && watcher == null && _failOnError) {
          throw new BuildException("" + failedCount + " file(s) failed to convert, while " + successCount + " succeeded. Total duration is " + duration + " ms.");
+      } else if (failedCount > 0) {
+         log("" + failedCount + " file(s) failed to convert, while " + successCount + " succeeded. Total duration is " + duration + " ms.", MSG_ERR);
       } else {
          log("" + successCount + " file(s) converted in " + duration + " ms; " + skippedCount + " unmodified file(s) skipped.");
       }
+
+      // Keep reconverting changed files until interrupted
+      if (watcher != null) {
+         log("Watching " + _sourceDir.getPath() + " for changes.");
+         try {
+            watcher.watch();
+         } catch (IOException cause) {
+            throw new BuildException("Failed to watch source directory " + quote(_sourceDir.getPath()) + '.', cause);
+         }
+      }
+   }
+
+
+   /**
+    * Writes the summary report to the report file.
+    *
+    * @throws BuildException
+    *    if the report file cannot be written.
+    */
+   private void writeReport(StringBuilder report) throws BuildException {
+      try {
+         Writer out = new OutputStreamWriter(new FileOutputStream(_reportFile), "UTF-8");
+         try {
+            out.write(report.toString());
+         } finally {
+            out.close();
+         }
+      } catch (IOException cause) {
+         throw new BuildException("Failed to write report file " + quote(_reportFile.getPath()) + '.', cause);
+      }
+      log("Wrote report to " + quote(_reportFile.getPath()) + '.', MSG_VERBOSE);
+   }
+
+   /**
+    * Moves an input file that failed to convert because of its content to
+    * the quarantine directory, if one is set, so it is not tried again. A
+    * file with the same name in the quarantine directory is replaced.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    */
+   private void quarantine(File inFile) {
+      if (_quarantineDir == null) {
+         return;
+      }
+      File target = new File(_quarantineDir, inFile.getName());
+      try {
+         Files.move(inFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         log("Moved " + quote(inFile.getPath()) + " to " + quote(target.getPath()) + '.', MSG_VERBOSE);
+      } catch (IOException cause) {
+         log("Failed to move " + quote(inFile.getPath()) + " to quarantine directory: " + cause.getMessage(), MSG_ERR);
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Filter that accepts the file names matched by the include and exclude
+    * patterns of this task. Names are matched by their path relative to
+    * the source directory, like the directory scanner does.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class PatternFilter implements FilenameFilter {
+
+      PatternFilter() {
+         _includes = fileset.mergeIncludes(getProject());
+         _excludes = fileset.mergeExcludes(getProject());
+      }
+
+      private final String[] _includes;
+      private final String[] _excludes;
+
+      public boolean accept(File dir, String name) {
+         if (! dir.getAbsoluteFile().equals(_sourceDir.getAbsoluteFile())) {
+            name = _sourceDir.getAbsoluteFile().toPath().relativize(new File(dir.getAbsoluteFile(), name).toPath()).toString();
+         }
+         if (_excludes != null) {
+            for (String pattern : _excludes) {
+               if (SelectorUtils.matchPath(pattern, name)) {
+                  return false;
+               }
+            }
+         }
+         if (_includes == null) {
+            return true;
+         }
+         for (String pattern : _includes) {
+            if (SelectorUtils.matchPath(pattern, name)) {
+               return true;
+            }
+         }
+         return false;
+      }
+   }
+
+   /**
+    * Listener that logs the results of conversions in watch mode.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class LogListener implements DirectoryWatcher.Listener {
+
+      public void converted(File inFile, File outFile, long duration) {
+         log("Converted " + quote(inFile.getName()) + " in " + duration + " ms.");
+      }
+
+      public void failed(File inFile, Throwable exception) {
+         String logMessage = "Failed to convert " + quote(inFile.getPath());
+         String exceptionMessage = exception.getMessage();
+         if (isEmpty(exceptionMessage)) {
+            logMessage += '.';
+         } else {
+            logMessage += ": " + exceptionMessage;
+         }
+         log(logMessage, MSG_ERR);
+      }
    }
 }
@@ -0,0 +1,387 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory for changed ODS files and reconverts each touched file
+ * as soon as it has settled. Change events for the same file that arrive
+ * within the debounce delay are coalesced into a single conversion.
+ * Conversions run on a pool of worker threads and write their output
+ * atomically, see {@link FileConverter}. A file is never converted twice at
+ * the same time: a change that arrives while a file is being converted
+ * causes it to be converted again once the running conversion finishes.
+ *
+ * <p>Only the directory itself is watched, not its subdirectories.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class DirectoryWatcher extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default debounce delay, in milliseconds.
+    */
+   static final long DEFAULT_DEBOUNCE = 200L;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>DirectoryWatcher</code> and starts listening
+    * for changes in the source directory. Events are only processed once
+    * {@link #watch()} is called, so no changes are missed between
+    * construction and an initial conversion pass.
+    *
+    * @param sourceDir
+    *    the directory to watch, cannot be <code>null</code>.
+    *
+    * @param destDir
+    *    the directory to write CSV files to, cannot be <code>null</code>.
+    *
+    * @param converter
+    *    the converter to use, cannot be <code>null</code>.
+    *
+    * @param filter
+    *    the filter that selects the input files in the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param listener
+    *    the listener to notify of results, cannot be <code>null</code>.
+    *
+    * @param threads
+    *    the number of worker threads, must be &gt;= 1.
+    *
+    * @param debounce
+    *    the time to wait for a file to settle, in milliseconds,
+    *    must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if any of the arguments is <code>null</code>,
+    *    or if <code>threads &lt; 1 || debounce &lt; 0</code>.
+    *
+    * @throws IOException
+    *    if the directory could not be registered for watching.
+    */
+   DirectoryWatcher(File           sourceDir,
+                    File           destDir,
+                    FileConverter  converter,
+                    FilenameFilter filter,
+                    Listener       listener,
+                    int            threads,
+                    long           debounce)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (sourceDir == null) {
+         throw new IllegalArgumentException("sourceDir == null");
+      } else if (destDir == null) {
+         throw new IllegalArgumentException("destDir == null");
+      } else if (converter == null) {
+         throw new IllegalArgumentException("converter == null");
+      } else if (filter == null) {
+         throw new IllegalArgumentException("filter == null");
+      } else if (listener == null) {
+         throw new IllegalArgumentException("listener == null");
+      } else if (threads < 1) {
+         throw new IllegalArgumentException("threads (" + threads + ") < 1");
+      } else if (debounce < 0L) {
+         throw new IllegalArgumentException("debounce (" + debounce + ") < 0");
+      }
+
+      // Initialize instance fields
+      _sourceDir = sourceDir;
+      _destDir   = destDir;
+      _converter = converter;
+      _filter    = filter;
+      _listener  = listener;
+      _threads   = threads;
+      _debounce  = debounce;
+      _pending   = new HashMap<String, Pending>();
+
+      // Start listening
+      Path dir = sourceDir.toPath();
+      _watchService = dir.getFileSystem().newWatchService();
+      dir.register(_watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                  StandardWatchEventKinds.ENTRY_MODIFY);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   private final File           _sourceDir;
+   private final File           _destDir;
+   private final FileConverter  _converter;
+   private final FilenameFilter _filter;
+   private final Listener       _listener;
+   private final int            _threads;
+   private final long           _debounce;
+   private final WatchService   _watchService;
+
+   /**
+    * The scheduled or running conversion per input file name. An entry is
+    * removed once its conversion finishes and no further change arrived.
+    * All access is synchronized on this map.
+    */
+   private final Map<String, Pending> _pending;
+
+   /**
+    * The worker threads, while {@link #watch()} runs.
+    */
+   private volatile ScheduledThreadPoolExecutor _pool;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Processes change events until the current thread is interrupted.
+    * Conversions that are already running are allowed to finish before
+    * this method returns.
+    *
+    * @throws IOException
+    *    if watching the directory fails.
+    */
+   void watch() throws IOException {
+      ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(_threads);
+      pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+      pool.setRemoveOnCancelPolicy(true);
+      _pool = pool;
+      try {
+         while (! Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+               key = _watchService.take();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            } catch (ClosedWatchServiceException e) {
+               break;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+
+               // Events were lost, so consider all matching files; the
+               // directory may be gone, which is detected below
+               if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                  String[] names = _sourceDir.list(_filter);
+                  for (String name : (names == null) ? new String[0] : names) {
+                     schedule(name);
+                  }
+
+               // A single file was created or modified
+               } else {
+                  String name = ((Path) event.context()).getFileName().toString();
+                  if (_filter.accept(_sourceDir, name)) {
+                     schedule(name);
+                  }
+               }
+            }
+
+            // Stop if the directory is no longer accessible
+            if (! key.reset()) {
+               throw new IOException("Directory \"" + _sourceDir + "\" can no longer be watched.");
+            }
+         }
+      } finally {
+         _watchService.close();
+         pool.shutdown();
+         try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Schedules a conversion of the specified file after the debounce delay,
+    * replacing any conversion of the same file that has not started yet. If
+    * the file is being converted right now, it is converted again after
+    * that conversion finishes.
+    */
+   private void schedule(String name) {
+      synchronized (_pending) {
+         Pending pending = _pending.get(name);
+         if (pending == null) {
+            pending = new Pending();
+            _pending.put(name, pending);
+         }
+         if (pending._running) {
+            pending._changed = true;
+         } else {
+            if (pending._future != null) {
+               pending._future.cancel(false);
+            }
+            start(name, pending);
+         }
+      }
+   }
+
+   /**
+    * Schedules a new conversion for an entry in {@link #_pending}. Must be
+    * called while synchronized on {@link #_pending}.
+    */
+   private void start(String name, Pending pending) {
+      Conversion conversion = new Conversion(name);
+      try {
+         pending._future     = _pool.schedule(conversion, _debounce, TimeUnit.MILLISECONDS);
+         pending._conversion = conversion;
+      } catch (RejectedExecutionException e) {
+
+         // Shutting down
+         _pending.remove(name);
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Callback interface for reporting the results of conversions.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   interface Listener {
+
+      /**
+       * Called after a file was converted successfully.
+       *
+       * @param inFile
+       *    the input file, never <code>null</code>.
+       *
+       * @param outFile
+       *    the output file, never <code>null</code>.
+       *
+       * @param duration
+       *    the duration of the conversion, in milliseconds.
+       */
+      void converted(File inFile, File outFile, long duration);
+
+      /**
+       * Called after the conversion of a file failed.
+       *
+       * @param inFile
+       *    the input file, never <code>null</code>.
+       *
+       * @param exception
+       *    the cause of the failure, never <code>null</code>.
+       */
+      void failed(File inFile, Throwable exception);
+   }
+
+   /**
+    * The state of the conversion of a single file.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Pending {
+
+      /**
+       * The most recently scheduled conversion. Only this one may run;
+       * an earlier one that could not be cancelled in time does nothing.
+       */
+      private Conversion _conversion;
+
+      private ScheduledFuture<?> _future;
+
+      /**
+       * Whether the conversion is running.
+       */
+      private boolean _running;
+
+      /**
+       * Whether the file changed while it was being converted.
+       */
+      private boolean _changed;
+   }
+
+   /**
+    * Conversion of a single file, run on a worker thread.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private final class Conversion implements Runnable {
+
+      Conversion(String name) {
+         _name = name;
+      }
+
+      /**
+       * The name of the input file, relative to the source directory.
+       */
+      private final String _name;
+
+      public void run() {
+
+         // Only the most recently scheduled conversion of a file may run
+         Pending pending;
+         synchronized (_pending) {
+            pending = _pending.get(_name);
+            if (pending == null || pending._conversion != this) {
+               return;
+            }
+            pending._running = true;
+            pending._future  = null;
+         }
+
+         try {
+            convert();
+         } finally {
+
+            // Convert again if the file changed meanwhile, otherwise forget it
+            synchronized (_pending) {
+               pending._running = false;
+               if (pending._changed) {
+                  pending._changed = false;
+                  start(_name, pending);
+               } else {
+                  _pending.remove(_name);
+               }
+            }
+         }
+      }
+
+      private void convert() {
+
+         // The file may have disappeared in the meantime
+         File inFile = new File(_sourceDir, _name);
+         if (! inFile.isFile()) {
+            return;
+         }
+
+         File outFile = new File(_destDir, _converter.outputFileName(_name));
+         long start = System.currentTimeMillis();
+         try {
+            _converter.convert(inFile, outFile);
+            _listener.converted(inFile, outFile, System.currentTimeMillis() - start);
+         } catch (Throwable e) {
+            _listener.failed(inFile, e);
+         }
+      }
+   }
+}
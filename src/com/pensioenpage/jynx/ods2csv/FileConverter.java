@@ -0,0 +1,590 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts individual ODS files to CSV files. The output is first written to
+ * a temporary file in the destination directory, which is then renamed to
+ * the actual output file. This way readers never see a partially written
+ * CSV file, and a failed conversion never replaces an existing output file.
+ * Optionally, the data is forced to disk before the rename, so the output
+ * survives a crash as well.
+ *
+ * <p>Instances of this class are thread-safe, as long as the underlying
+ * {@link Converter} is not reconfigured while conversions are running.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class FileConverter extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The suffix for temporary output files.
+    */
+   private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+   /**
+    * The pattern of the name of a temporary output file, see
+    * {@link #tempFilePrefix(File)}. The group is the name of the file it
+    * replaces.
+    */
+   private static final Pattern TEMP_FILE_NAME = Pattern.compile("\\.(.+)\\.-?[0-9]+" + Pattern.quote(TEMP_FILE_SUFFIX));
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Removes temporary files left behind for the specified output files and
+    * the files that belong to them, for example by a conversion that was
+    * killed halfway. The directory is listed only once. This should only be
+    * called when no conversion to any of these output files is in progress.
+    *
+    * @param dir
+    *    the directory that contains the output files,
+    *    cannot be <code>null</code>.
+    *
+    * @param outFileNames
+    *    the names of the output files, cannot be <code>null</code>.
+    *
+    * @return
+    *    the number of temporary files removed.
+    */
+   static int removeTempFiles(File dir, Collection<String> outFileNames) {
+
+      // The files that may be replaced through a temporary file
+      Set<String> targets = new HashSet<String>();
+      for (String outFileName : outFileNames) {
+         File outFile = new File(dir, outFileName);
+         targets.add(outFileName);
+         targets.add(rowHashFile(outFile).getName());
+         targets.add(rowIndexFile(outFile).getName());
+         targets.add(statisticsFile(outFile).getName());
+      }
+
+      String[] names = dir.list();
+      int count = 0;
+      for (String name : (names == null) ? new String[0] : names) {
+         Matcher matcher = TEMP_FILE_NAME.matcher(name);
+         if (matcher.matches() && targets.contains(matcher.group(1))) {
+            if (new File(dir, name).delete()) {
+               count++;
+            }
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Determines the row hash file that belongs to the specified output
+    * file in diff mode, see {@link #setDiff(boolean)}.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>,
+    *    e.g. <code>"sheet5.csv"</code>.
+    *
+    * @return
+    *    the row hash file, e.g. <code>"sheet5.csv.rowhash"</code>.
+    */
+   static File rowHashFile(File outFile) {
+      return new File(outFile.getPath() + ".rowhash");
+   }
+
+   /**
+    * Determines the row index file that belongs to the specified output
+    * file, see {@link #setRowIndex(boolean)}.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>,
+    *    e.g. <code>"sheet5.csv"</code>.
+    *
+    * @return
+    *    the row index file, e.g. <code>"sheet5.csv.rowidx"</code>.
+    */
+   static File rowIndexFile(File outFile) {
+      return new File(outFile.getPath() + ".rowidx");
+   }
+
+   /**
+    * Determines the statistics file that belongs to the specified output
+    * file, see {@link #setStatistics(boolean)}.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>,
+    *    e.g. <code>"sheet5.csv"</code>.
+    *
+    * @return
+    *    the statistics file, e.g. <code>"sheet5.csv.stats.json"</code>.
+    */
+   static File statisticsFile(File outFile) {
+      return new File(outFile.getPath() + ".stats.json");
+   }
+
+   private static String tempFilePrefix(File outFile) {
+      return "." + outFile.getName() + '.';
+   }
+
+   /**
+    * Forces the directory entry changes of the specified directory to disk.
+    * Not all platforms support this; on those this method does nothing.
+    */
+   private static void syncDirectory(File dir) {
+      try {
+         FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+         try {
+            channel.force(true);
+         } finally {
+            channel.close();
+         }
+      } catch (IOException e) {
+         // ignore, directories cannot be opened on some platforms
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileConverter</code> that uses the specified
+    * <code>Converter</code>.
+    *
+    * @param converter
+    *    the {@link Converter} to use, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>converter == null</code>.
+    */
+   FileConverter(Converter converter) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (converter == null) {
+         throw new IllegalArgumentException("converter == null");
+      }
+
+      _converter = converter;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The converter that does the actual work. Never <code>null</code>.
+    */
+   private final Converter _converter;
+
+   /**
+    * Flag that indicates whether output is forced to disk before it is
+    * renamed. See {@link #setSync(boolean)}.
+    */
+   private volatile boolean _sync;
+
+   /**
+    * Flag that indicates whether the output is GZIP-compressed.
+    * See {@link #setGzip(boolean)}.
+    */
+   private volatile boolean _gzip;
+
+   /**
+    * The number of threads to compress each output file on.
+    * See {@link #setCompressionThreads(int)}.
+    */
+   private volatile int _compressionThreads = 1;
+
+   /**
+    * Flag that indicates whether only changed rows are written.
+    * See {@link #setDiff(boolean)}.
+    */
+   private volatile boolean _diff;
+
+   /**
+    * Flag that indicates whether a row index is written.
+    * See {@link #setRowIndex(boolean)}.
+    */
+   private volatile boolean _rowIndex;
+
+   /**
+    * Flag that indicates whether per-column statistics are written.
+    * See {@link #setStatistics(boolean)}.
+    */
+   private volatile boolean _statistics;
+
+   /**
+    * The filter that selects the input files, or <code>null</code> if all
+    * files are selected. See {@link #setInputFilter(FilenameFilter)}.
+    */
+   private volatile FilenameFilter _inputFilter;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the name of the output file for the specified input file
+    * name. If compression is enabled, the name ends with
+    * <code>".csv.gz"</code> instead of <code>".csv"</code>.
+    *
+    * @param inFileName
+    *    the name of the input file, cannot be <code>null</code>,
+    *    e.g. <code>"sheet5.ods"</code> or <code>"sheet5.fods"</code>.
+    *
+    * @return
+    *    the name of the output file, e.g. <code>"sheet5.csv"</code>.
+    */
+   String outputFileName(String inFileName) {
+      return inFileName.replaceFirst("\\.f?ods$", _gzip ? ".csv.gz" : ".csv");
+   }
+
+   /**
+    * Checks that no other input file maps to the same output file as the
+    * specified one. Since <code>"sheet5.ods"</code> and
+    * <code>"sheet5.fods"</code> are both converted to
+    * <code>"sheet5.csv"</code>, they cannot both be selected, see
+    * {@link #setInputFilter(FilenameFilter)}.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if another selected input file maps to the same output file.
+    */
+   void checkConflicts(File inFile) throws IOException {
+      String name = inFile.getName();
+      String otherName = name.endsWith(".fods") ? name.substring(0, name.length() - 5) + ".ods"
+                       : name.endsWith(".ods")  ? name.substring(0, name.length() - 4) + ".fods"
+                       : null;
+      File dir = inFile.getAbsoluteFile().getParentFile();
+      FilenameFilter filter = _inputFilter;
+      if (otherName != null && new File(dir, otherName).exists() && (filter == null || filter.accept(dir, otherName))) {
+         throw new IOException("Both \"" + name + "\" and \"" + otherName + "\" would be converted to \"" + outputFileName(name) + "\".");
+      }
+   }
+
+   /**
+    * Sets the filter that selects the input files. A file next to an input
+    * file that would be converted to the same output file is only a
+    * conflict if this filter accepts it as well, see
+    * {@link #checkConflicts(File)}. The default is <code>null</code>.
+    *
+    * @param filter
+    *    the filter that selects the input files, or <code>null</code> if
+    *    all files are selected.
+    */
+   void setInputFilter(FilenameFilter filter) {
+      _inputFilter = filter;
+   }
+
+   /**
+    * Sets whether the output should be GZIP-compressed. The CSV text is
+    * compressed while it is produced, so it is never written to disk
+    * uncompressed. The default is <code>false</code>.
+    *
+    * @param gzip
+    *    <code>true</code> to compress the output,
+    *    <code>false</code> otherwise.
+    */
+   void setGzip(boolean gzip) {
+      _gzip = gzip;
+   }
+
+   /**
+    * Sets the number of threads to compress each output file on, see
+    * {@link #setGzip(boolean)}. The default is 1.
+    *
+    * @param threads
+    *    the number of threads, must be &gt;= 1.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>threads &lt; 1</code>.
+    */
+   void setCompressionThreads(int threads) throws IllegalArgumentException {
+      if (threads < 1) {
+         throw new IllegalArgumentException("threads (" + threads + ") < 1");
+      }
+      _compressionThreads = threads;
+   }
+
+   /**
+    * Sets whether the output should be forced to disk before it replaces
+    * the output file. This makes the output crash-safe, at the cost of
+    * waiting for the disk. The default is <code>false</code>.
+    *
+    * @param sync
+    *    <code>true</code> to fsync the output file and its directory,
+    *    <code>false</code> to leave that to the operating system.
+    */
+   void setSync(boolean sync) {
+      _sync = sync;
+   }
+
+   /**
+    * Sets whether only the rows that changed since the previous conversion
+    * should be written, see
+    * {@link Converter#convertChanges(InputStream,OutputStream,InputStream,OutputStream)}.
+    * The row hashes are kept in a file next to the output file, see
+    * {@link #rowHashFile(File)}. This cannot be combined with
+    * {@link #setRowIndex(boolean)} or {@link #setStatistics(boolean)}.
+    * The default is <code>false</code>.
+    *
+    * @param diff
+    *    <code>true</code> to write only changed rows,
+    *    <code>false</code> to write all rows.
+    */
+   void setDiff(boolean diff) {
+      _diff = diff;
+   }
+
+   /**
+    * Sets whether a {@link RowIndex} should be written next to each output
+    * file, see {@link #rowIndexFile(File)}. This cannot be combined with
+    * {@link #setDiff(boolean)}. The default is <code>false</code>.
+    *
+    * @param rowIndex
+    *    <code>true</code> to write a row index,
+    *    <code>false</code> otherwise.
+    */
+   void setRowIndex(boolean rowIndex) {
+      _rowIndex = rowIndex;
+   }
+
+   /**
+    * Sets whether per-column statistics should be written next to each
+    * output file, see {@link #statisticsFile(File)} and
+    * {@link Converter#convert(InputStream,OutputStream,OutputStream,OutputStream)}.
+    * This cannot be combined with {@link #setDiff(boolean)}. The default is
+    * <code>false</code>.
+    *
+    * @param statistics
+    *    <code>true</code> to write statistics,
+    *    <code>false</code> otherwise.
+    */
+   void setStatistics(boolean statistics) {
+      _statistics = statistics;
+   }
+
+   /**
+    * Converts the specified input file to the specified output file. If
+    * the conversion fails, the output file is left untouched and no
+    * temporary file is left behind.
+    *
+    * @param inFile
+    *    the ODS file to read, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the CSV file to write, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>inFile == null || outFile == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error, or if another selected input file maps to the same
+    *    output file, see {@link #checkConflicts(File)}.
+    *
+    * @throws ConversionException
+    *    in case of a conversion failure.
+    */
+   void convert(File inFile, File outFile)
+   throws IllegalArgumentException, IOException, ConversionException {
+
+      // Check preconditions
+      if (inFile == null) {
+         throw new IllegalArgumentException("inFile == null");
+      } else if (outFile == null) {
+         throw new IllegalArgumentException("outFile == null");
+      }
+      checkConflicts(inFile);
+
+      File dir = outFile.getAbsoluteFile().getParentFile();
+      boolean sync = _sync;
+      boolean gzip = _gzip;
+      boolean diff = _diff;
+      boolean rowIndex = _rowIndex && ! diff;
+      boolean statistics = _statistics && ! diff;
+
+      // The files that belong to the output file are replaced along with it
+      File indexFile = diff ? rowHashFile(outFile) : rowIndex ? rowIndexFile(outFile) : null;
+      File statsFile = statistics ? statisticsFile(outFile) : null;
+
+      File tempFile = null, tempIndexFile = null, tempStatsFile = null;
+      boolean done = false;
+      try {
+
+         // Write to hidden temporary files next to the output file, so the
+         // final renames stay within one file system
+         tempFile = File.createTempFile(tempFilePrefix(outFile), TEMP_FILE_SUFFIX, dir);
+         if (indexFile != null) {
+            tempIndexFile = File.createTempFile(tempFilePrefix(indexFile), TEMP_FILE_SUFFIX, dir);
+         }
+         if (statsFile != null) {
+            tempStatsFile = File.createTempFile(tempFilePrefix(statsFile), TEMP_FILE_SUFFIX, dir);
+         }
+
+         // Channel-based, so the time limit can interrupt a blocked read
+         InputStream in = new BufferedInputStream(Files.newInputStream(inFile.toPath()));
+         try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+
+               // The converter closes its output stream, which finishes
+               // the compressed stream, but must not close the file
+               OutputStream csvOut = new UnclosableOutputStream(out);
+               if (gzip) {
+                  csvOut = new BlockGzipOutputStream(csvOut, _compressionThreads);
+               }
+
+               if (diff) {
+                  convertChanges(in, csvOut, indexFile, tempIndexFile, sync);
+               } else if (rowIndex || statistics) {
+                  convertWithSidecars(in, csvOut, tempIndexFile, tempStatsFile, sync);
+               } else {
+                  _converter.convert(in, csvOut);
+               }
+               if (sync) {
+                  out.getFD().sync();
+               }
+            } finally {
+               out.close();
+            }
+         } finally {
+            in.close();
+         }
+
+         // Replace the output file in one go, then the index it belongs to;
+         // if the latter fails, the next run reports the same changes again
+         replace(tempFile, outFile);
+         if (indexFile != null) {
+            replace(tempIndexFile, indexFile);
+         }
+         if (statsFile != null) {
+            replace(tempStatsFile, statsFile);
+         }
+         done = true;
+         if (sync) {
+            syncDirectory(dir);
+         }
+
+      // Never leave temporary files behind
+      } finally {
+         if (! done) {
+            if (tempFile != null) {
+               tempFile.delete();
+            }
+            if (tempIndexFile != null) {
+               tempIndexFile.delete();
+            }
+            if (tempStatsFile != null) {
+               tempStatsFile.delete();
+            }
+         }
+      }
+   }
+
+   private void convertChanges(InputStream in, OutputStream out, File indexFile, File tempIndexFile, boolean sync)
+   throws IOException, ConversionException {
+      InputStream previousIndex = indexFile.isFile() ? new FileInputStream(indexFile) : null;
+      try {
+         FileOutputStream newIndex = new FileOutputStream(tempIndexFile);
+         try {
+            _converter.convertChanges(in, out, previousIndex, newIndex);
+            if (sync) {
+               newIndex.getFD().sync();
+            }
+         } finally {
+            newIndex.close();
+         }
+      } finally {
+         if (previousIndex != null) {
+            previousIndex.close();
+         }
+      }
+   }
+
+   private void convertWithSidecars(InputStream in, OutputStream out, File tempIndexFile, File tempStatsFile, boolean sync)
+   throws IOException, ConversionException {
+      FileOutputStream index = (tempIndexFile == null) ? null : new FileOutputStream(tempIndexFile);
+      try {
+         FileOutputStream stats = (tempStatsFile == null) ? null : new FileOutputStream(tempStatsFile);
+         try {
+            _converter.convert(in, out, index, stats);
+            if (sync && index != null) {
+               index.getFD().sync();
+            }
+            if (sync && stats != null) {
+               stats.getFD().sync();
+            }
+         } finally {
+            if (stats != null) {
+               stats.close();
+            }
+         }
+      } finally {
+         if (index != null) {
+            index.close();
+         }
+      }
+   }
+
+   private static void replace(File source, File target) throws IOException {
+      try {
+         Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+         Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Output stream that ignores <code>close()</code>. The converter closes
+    * its output stream, which would make the file descriptor unusable for
+    * syncing.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class UnclosableOutputStream extends FilterOutputStream {
+
+      UnclosableOutputStream(OutputStream out) {
+         super(out);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+         flush();
+      }
+   }
+}
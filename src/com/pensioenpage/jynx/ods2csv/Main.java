@@ -1,6 +1,8 @@
 // Copyright 2007-2009, PensioenPage B.V.
 package com.pensioenpage.jynx.ods2csv;
 
+import java.io.File;
+import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -17,6 +19,17 @@ import org.xml.sax.helpers.XMLReaderFactory;
  * Input is expected to come from <em>stdin</em>, output goes to
  * <em>stdout</em> and errors to <em>stderr</em>.
  *
+ * <p>Alternatively, with the arguments <code>--watch <em>dir</em>
+ * [<em>todir</em>]</code>, all ODS and Flat ODS files in <em>dir</em> are converted to
+ * CSV files in <em>todir</em> (defaults to <em>dir</em>), after which each
+ * file that changes is reconverted, until the program is stopped.
+ *
+ * <p>With the option <code>--gzip</code> (before any other arguments), the
+ * output is GZIP-compressed while it is produced. When converting from
+ * <em>stdin</em> to <em>stdout</em>, blocks are compressed on all available
+ * processors. In watch mode, the output files get the extension
+ * <code>.csv.gz</code>.
+ *
  * <p>This program returns 0 on succes. Any other exit code indicates failure.
  *
  * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
@@ -35,9 +48,39 @@ public final class Main extends Object {
     */
    public static void main(String[] args) {
 
+      // Compress the output, if requested
+      int first = 0;
+      boolean gzip = false;
+      if (args != null && args.length > 0 && "--gzip".equals(args[0])) {
+         gzip = true;
+         first++;
+      }
+
+      // Watch a directory, if requested
+      if (args != null && args.length > first && "--watch".equals(args[first])) {
+         int count = args.length - first;
+         if (count < 2 || count > 3) {
+            System.err.println("Usage: [--gzip] --watch dir [todir]");
+            System.exit(2);
+         }
+         File sourceDir = new File(args[first + 1]);
+         File   destDir = (count > 2) ? new File(args[first + 2]) : sourceDir;
+         try {
+            watch(sourceDir, destDir, gzip);
+            System.exit(0);
+         } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+         }
+      }
+
       // Convert
       try {
-         new Converter().convert(System.in, System.out);
+         OutputStream out = System.out;
+         if (gzip) {
+            out = new BlockGzipOutputStream(out, Runtime.getRuntime().availableProcessors());
+         }
+         new Converter().convert(System.in, out);
          System.exit(0);
 
       // All exceptions are caught
@@ -47,6 +90,64 @@ public final class Main extends Object {
       }
    }
 
+   /**
+    * Converts all ODS files in a directory and then keeps reconverting the
+    * ones that change. Progress is reported on <em>stderr</em>.
+    *
+    * @param sourceDir
+    *    the directory to read ODS files from, cannot be <code>null</code>.
+    *
+    * @param destDir
+    *    the directory to write CSV files to, cannot be <code>null</code>.
+    *
+    * @param gzip
+    *    <code>true</code> if the CSV files should be GZIP-compressed.
+    *
+    * @throws IOException
+    *    if the directory cannot be watched.
+    */
+   private static void watch(File sourceDir, File destDir, boolean gzip) throws IOException {
+
+      FilenameFilter filter = new FilenameFilter() {
+         public boolean accept(File dir, String name) {
+            return name.endsWith(".ods") || name.endsWith(".fods");
+         }
+      };
+      DirectoryWatcher.Listener listener = new DirectoryWatcher.Listener() {
+         public void converted(File inFile, File outFile, long duration) {
+            System.err.println("Converted " + inFile + " in " + duration + " ms.");
+         }
+         public void failed(File inFile, Throwable exception) {
+            System.err.println("Failed to convert " + inFile + ": " + exception.getMessage());
+         }
+      };
+
+      // Start listening before the initial conversion, so no changes are missed
+      FileConverter converter = new FileConverter(new Converter());
+      converter.setGzip(gzip);
+      converter.setInputFilter(filter);
+      int threads = Runtime.getRuntime().availableProcessors();
+      DirectoryWatcher watcher = new DirectoryWatcher(sourceDir, destDir, converter, filter, listener, threads, DirectoryWatcher.DEFAULT_DEBOUNCE);
+
+      // Initial conversion of all files that are out of date
+      String[] names = sourceDir.list(filter);
+      for (String name : (names == null) ? new String[0] : names) {
+         File  inFile = new File(sourceDir, name);
+         File outFile = new File(destDir, converter.outputFileName(name));
+         if (outFile.lastModified() <= inFile.lastModified()) {
+            long start = System.currentTimeMillis();
+            try {
+               converter.convert(inFile, outFile);
+               listener.converted(inFile, outFile, System.currentTimeMillis() - start);
+            } catch (Throwable e) {
+               listener.failed(inFile, e);
+            }
+         }
+      }
+
+      watcher.watch();
+   }
+
 
    //-------------------------------------------------------------------------
    // Constructors
@@ -0,0 +1,212 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Random access to the rows of a converted CSV file, using a
+ * {@link RowIndex}. The CSV file is memory-mapped, so only the pages that
+ * hold the requested rows are actually read. Locating a row takes a lookup
+ * in the index plus a scan over at most {@link RowIndex#getInterval()} rows.
+ *
+ * <p>Instances of this class are not thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class MappedCsv extends Object implements Closeable {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The number of bits in the size of a single mapped segment. A single
+    * mapping cannot exceed 2 GiB, so larger files are mapped in segments
+    * of 1 GiB.
+    */
+   private static final int SEGMENT_BITS = 30;
+
+   private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1L;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>MappedCsv</code> for the specified CSV file and
+    * its row index.
+    *
+    * @param csvFile
+    *    the CSV file, cannot be <code>null</code>.
+    *
+    * @param index
+    *    the row index that was written when the CSV file was produced,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>csvFile == null || index == null</code>.
+    *
+    * @throws IOException
+    *    if the file cannot be mapped, or if its size does not match the
+    *    index.
+    */
+   public MappedCsv(File csvFile, RowIndex index)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (csvFile == null) {
+         throw new IllegalArgumentException("csvFile == null");
+      } else if (index == null) {
+         throw new IllegalArgumentException("index == null");
+      }
+
+      _index = index;
+      _file  = new RandomAccessFile(csvFile, "r");
+      try {
+         FileChannel channel = _file.getChannel();
+         _size = channel.size();
+         if (_size != index.getSize()) {
+            throw new IOException("Size of \"" + csvFile + "\" (" + _size + " bytes) does not match row index (" + index.getSize() + " bytes).");
+         }
+
+         int segmentCount = (int) ((_size + SEGMENT_MASK) >>> SEGMENT_BITS);
+         _segments = new MappedByteBuffer[segmentCount];
+         for (int i = 0; i < segmentCount; i++) {
+            long start = (long) i << SEGMENT_BITS;
+            _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(_size - start, SEGMENT_MASK + 1L));
+         }
+      } catch (IOException e) {
+         _file.close();
+         throw e;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   private final RowIndex           _index;
+   private final RandomAccessFile   _file;
+   private final long               _size;
+   private final MappedByteBuffer[] _segments;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the row index used by this object.
+    *
+    * @return
+    *    the row index, never <code>null</code>.
+    */
+   public RowIndex getIndex() {
+      return _index;
+   }
+
+   /**
+    * Returns a range of rows from the specified sheet, as CSV records
+    * without the terminating newline.
+    *
+    * @param sheetName
+    *    the name of the sheet, cannot be <code>null</code>.
+    *
+    * @param firstRow
+    *    the 0-based number of the first row within the sheet.
+    *
+    * @param count
+    *    the maximum number of rows to return; fewer are returned if the
+    *    sheet ends before that.
+    *
+    * @return
+    *    the rows, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if there is no sheet with the specified name, if
+    *    <code>firstRow</code> is out of range, or if <code>count &lt; 0</code>.
+    */
+   public List<String> getRows(String sheetName, long firstRow, int count)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      if (count < 0) {
+         throw new IllegalArgumentException("count (" + count + ") < 0");
+      }
+
+      long fileRow = _index.getFileRow(sheetName, firstRow);
+      long rowsLeft = _index.getRowCount(sheetName) - firstRow;
+      int  n = (int) Math.min((long) count, rowsLeft);
+
+      // Start at the nearest indexed row and skip forward
+      long row    = _index.getIndexedRow(fileRow);
+      long offset = _index.getIndexedOffset(row);
+      for (; row < fileRow; row++) {
+         offset = endOfRow(offset);
+      }
+
+      List<String> rows = new ArrayList<String>(n);
+      for (int i = 0; i < n; i++) {
+         long end  = endOfRow(offset);
+         long stop = (end > offset && byteAt(end - 1L) == '\n') ? end - 1L : end;
+         rows.add(decode(offset, stop));
+         offset = end;
+      }
+      return rows;
+   }
+
+   /**
+    * Determines where the row starting at the specified offset ends. A
+    * newline inside a quoted value does not end the row.
+    *
+    * @return
+    *    the offset just past the terminating newline.
+    */
+   private long endOfRow(long offset) {
+      boolean quoted = false;
+      for (long pos = offset; pos < _size; pos++) {
+         byte b = byteAt(pos);
+         if (b == '"') {
+            quoted = ! quoted;
+         } else if (b == '\n' && ! quoted) {
+            return pos + 1L;
+         }
+      }
+      return _size;
+   }
+
+   private byte byteAt(long pos) {
+      return _segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+   }
+
+   private String decode(long start, long end) {
+      byte[] bytes = new byte[(int) Math.max(0L, end - start)];
+      for (int i = 0; i < bytes.length; i++) {
+         bytes[i] = byteAt(start + i);
+      }
+      return new String(bytes, UTF8);
+   }
+
+   /**
+    * Closes the underlying file. The mapped memory is released once it is
+    * garbage collected.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   public void close() throws IOException {
+      _file.close();
+   }
+}
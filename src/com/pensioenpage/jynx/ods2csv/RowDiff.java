@@ -0,0 +1,444 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Compares the rows of a conversion with those of a previous conversion,
+ * using a compact index that holds a 64-bit hash per row. The index is
+ * sorted by hash, so a row is looked up by its content, not by its
+ * position: inserting or deleting a row only reports that row, not all rows
+ * after it.
+ *
+ * <p>A row is identified by its sheet and its content. A row that was
+ * modified is therefore reported as removed at its old position and added
+ * at its new position. Identical rows in the same sheet are matched one by
+ * one, so duplicating a row reports a single added row.
+ *
+ * <p>The index of the previous conversion and the hashes of the current one
+ * are kept in memory, taking 16 bytes per row each.
+ *
+ * <p>The index format is an 8-byte magic header, the number of sheets, for
+ * each sheet its name and first row, the number of rows and finally a
+ * big-endian 64-bit hash and row number per row, in ascending order of hash.
+ * The hash is FNV-1a over the sheet name and the CSV text of the row,
+ * including the terminating newline.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class RowDiff extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The marker for a row that did not exist in the previous conversion.
+    */
+   static final char ADDED = 'A';
+
+   /**
+    * The marker for a row that no longer exists.
+    */
+   static final char REMOVED = 'R';
+
+   /**
+    * The header that identifies a row hash index, <code>"ODS2CSVD"</code>.
+    */
+   private static final long MAGIC = 0x4f44533243535644L;
+
+   /**
+    * The FNV-1a 64-bit offset basis.
+    */
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+   /**
+    * The FNV-1a 64-bit prime.
+    */
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the specified sheet name as a CSV field, quoted if necessary.
+    */
+   private static String csvField(String s) {
+      if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+         return s;
+      }
+      return '"' + s.replace("\"", "\"\"") + '"';
+   }
+
+   /**
+    * Finds the first position in a sorted array of hashes that holds the
+    * specified hash, or the position where it would be inserted.
+    */
+   private static int lowerBound(long[] hashes, int count, long hash) {
+      int low = 0, high = count;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (hashes[mid] < hash) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * Sorts the first <code>count</code> pairs of hash and row number by
+    * hash, then row number, using heapsort.
+    */
+   private static void sort(long[] hashes, long[] rows, int count) {
+      for (int i = count / 2 - 1; i >= 0; i--) {
+         siftDown(hashes, rows, i, count);
+      }
+      for (int end = count - 1; end > 0; end--) {
+         swap(hashes, rows, 0, end);
+         siftDown(hashes, rows, 0, end);
+      }
+   }
+
+   private static void siftDown(long[] hashes, long[] rows, int i, int count) {
+      while (true) {
+         int child = 2 * i + 1;
+         if (child >= count) {
+            return;
+         }
+         if (child + 1 < count && greater(hashes, rows, child + 1, child)) {
+            child++;
+         }
+         if (! greater(hashes, rows, child, i)) {
+            return;
+         }
+         swap(hashes, rows, i, child);
+         i = child;
+      }
+   }
+
+   private static boolean greater(long[] hashes, long[] rows, int a, int b) {
+      return hashes[a] > hashes[b] || (hashes[a] == hashes[b] && rows[a] > rows[b]);
+   }
+
+   private static void swap(long[] hashes, long[] rows, int a, int b) {
+      long hash = hashes[a];
+      hashes[a] = hashes[b];
+      hashes[b] = hash;
+      long row  = rows[a];
+      rows[a]   = rows[b];
+      rows[b]   = row;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>RowDiff</code>.
+    *
+    * @param previousIndex
+    *    the index of the previous conversion, or <code>null</code> if there
+    *    is none, in which case all rows are considered added.
+    *
+    * @param newIndex
+    *    the stream to write the index of this conversion to,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>newIndex == null</code>.
+    *
+    * @throws IOException
+    *    if the previous index could not be read or is not a valid index.
+    */
+   RowDiff(InputStream previousIndex, OutputStream newIndex)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (newIndex == null) {
+         throw new IllegalArgumentException("newIndex == null");
+      }
+
+      _newIndex       = newIndex;
+      _sheets         = new ArrayList<String>();
+      _sheetStarts    = new long[16];
+      _hashes         = new long[1024];
+      _previousSheets = new ArrayList<String>();
+
+      // Read the previous index
+      if (previousIndex == null) {
+         _previousHashes      = new long[0];
+         _previousRows        = new long[0];
+         _previousSheetStarts = new long[0];
+      } else {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(previousIndex));
+         try {
+            if (in.readLong() != MAGIC) {
+               throw new IOException("Previous row index is not a valid row index.");
+            }
+            int sheetCount = in.readInt();
+            if (sheetCount < 0) {
+               throw new IOException("Previous row index is not a valid row index.");
+            }
+            _previousSheetStarts = new long[sheetCount];
+            for (int i = 0; i < sheetCount; i++) {
+               _previousSheets.add(in.readUTF());
+               _previousSheetStarts[i] = in.readLong();
+            }
+            long rowCount = in.readLong();
+            if (rowCount < 0L || rowCount > Integer.MAX_VALUE) {
+               throw new IOException("Previous row index is not a valid row index.");
+            }
+            _previousHashes = new long[(int) rowCount];
+            _previousRows   = new long[(int) rowCount];
+            for (int i = 0; i < rowCount; i++) {
+               _previousHashes[i] = in.readLong();
+               _previousRows[i]   = in.readLong();
+            }
+         } catch (EOFException e) {
+            throw new IOException("Previous row index is not a valid row index.", e);
+         }
+      }
+      _matched = new BitSet(_previousHashes.length);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The stream to write the index of this conversion to.
+    * Never <code>null</code>.
+    */
+   private final OutputStream _newIndex;
+
+   /**
+    * The sheet names of this conversion, in document order.
+    */
+   private final List<String> _sheets;
+
+   /**
+    * The first row of each sheet of this conversion.
+    */
+   private long[] _sheetStarts;
+
+   /**
+    * The hashes of the rows of this conversion, in document order.
+    */
+   private long[] _hashes;
+
+   /**
+    * The sheet names of the previous conversion, in document order.
+    */
+   private final List<String> _previousSheets;
+
+   /**
+    * The first row of each sheet of the previous conversion.
+    */
+   private final long[] _previousSheetStarts;
+
+   /**
+    * The hashes of the rows of the previous conversion, in ascending order.
+    */
+   private final long[] _previousHashes;
+
+   /**
+    * The row numbers that belong to {@link #_previousHashes}.
+    */
+   private final long[] _previousRows;
+
+   /**
+    * The rows of the previous conversion that were found again, by their
+    * position in {@link #_previousHashes}.
+    */
+   private final BitSet _matched;
+
+   /**
+    * The number of rows so far.
+    */
+   private int _rowCount;
+
+   /**
+    * The hash of the sheet name, the starting point for the hash of each
+    * row in the sheet. Initially that of an empty sheet name.
+    */
+   private long _sheetHash = FNV_OFFSET * FNV_PRIME;
+
+   /**
+    * The hash of the current row, while it is being computed.
+    */
+   private long _hash = FNV_OFFSET * FNV_PRIME;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Records the start of a new sheet. Subsequent rows belong to this sheet.
+    *
+    * @param name
+    *    the name of the sheet, cannot be <code>null</code>.
+    */
+   void startSheet(String name) {
+      if (_sheets.size() == _sheetStarts.length) {
+         _sheetStarts = Arrays.copyOf(_sheetStarts, _sheetStarts.length * 2);
+      }
+      _sheetStarts[_sheets.size()] = _rowCount;
+      _sheets.add(name);
+
+      long hash = FNV_OFFSET;
+      for (byte b : name.getBytes(UTF8)) {
+         hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+      }
+      _sheetHash = hash * FNV_PRIME;
+      _hash      = _sheetHash;
+   }
+
+   /**
+    * Returns an output stream that feeds the bytes written to it into the
+    * hash of the current row.
+    *
+    * @return
+    *    the hashing stream, never <code>null</code>.
+    */
+   OutputStream hashStream() {
+      return new OutputStream() {
+         @Override
+         public void write(int b) {
+            _hash = (_hash ^ (b & 0xff)) * FNV_PRIME;
+         }
+         @Override
+         public void write(byte[] b, int off, int len) {
+            long hash = _hash;
+            for (int i = off, end = off + len; i < end; i++) {
+               hash = (hash ^ (b[i] & 0xff)) * FNV_PRIME;
+            }
+            _hash = hash;
+         }
+      };
+   }
+
+   /**
+    * Completes the current row: looks up its hash in the previous
+    * conversion and records it for the new index.
+    *
+    * @return
+    *    the start of the output record for the row if it was added: the
+    *    {@link #ADDED} marker, the sheet name and the 1-based row number
+    *    within the sheet, each followed by a comma; or <code>null</code> if
+    *    the row is unchanged.
+    *
+    * @throws IOException
+    *    if the conversion has too many rows.
+    */
+   String endRow() throws IOException {
+      long hash = _hash;
+      if (_sheets.isEmpty()) {
+         startSheet("");
+      }
+      _hash = _sheetHash;
+
+      if (_rowCount == Integer.MAX_VALUE) {
+         throw new IOException("Too many rows to compare.");
+      } else if (_rowCount == _hashes.length) {
+         _hashes = Arrays.copyOf(_hashes, (int) Math.min(Integer.MAX_VALUE, _hashes.length * 2L));
+      }
+      _hashes[_rowCount++] = hash;
+
+      // Match against the first unmatched row with the same hash; since
+      // those are always matched first, the matched rows form a prefix of
+      // the run of equal hashes, so a binary search finds it
+      int count = _previousHashes.length;
+      int low = lowerBound(_previousHashes, count, hash), high = count;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (_previousHashes[mid] == hash && _matched.get(mid)) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      if (low < count && _previousHashes[low] == hash) {
+         _matched.set(low);
+         return null;
+      }
+
+      int sheet = _sheets.size() - 1;
+      long row  = _rowCount - _sheetStarts[sheet];
+      return "" + ADDED + ',' + csvField(_sheets.get(sheet)) + ',' + row + ',';
+   }
+
+   /**
+    * Completes the comparison: writes a record for each row of the previous
+    * conversion that was not found again, in the order of the previous
+    * conversion, and writes the new index.
+    *
+    * @param out
+    *    the stream to write the records of removed rows to,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void finish(OutputStream out) throws IOException {
+
+      // Report the rows that no longer exist
+      int removedCount = _previousHashes.length - _matched.cardinality();
+      long[] removed = new long[removedCount];
+      for (int i = _matched.nextClearBit(0), n = 0; i < _previousHashes.length; i = _matched.nextClearBit(i + 1)) {
+         removed[n++] = _previousRows[i];
+      }
+      Arrays.sort(removed);
+      int sheet = 0;
+      for (long row : removed) {
+         while (sheet + 1 < _previousSheetStarts.length && _previousSheetStarts[sheet + 1] <= row) {
+            sheet++;
+         }
+         String name = _previousSheets.isEmpty() ? "" : _previousSheets.get(sheet);
+         long sheetRow = row - (_previousSheetStarts.length == 0 ? 0L : _previousSheetStarts[sheet]) + 1L;
+         String record = "" + REMOVED + ',' + csvField(name) + ',' + sheetRow + '\n';
+         out.write(record.getBytes(UTF8));
+      }
+
+      // Write the new index, sorted by hash
+      long[] rows = new long[_rowCount];
+      for (int i = 0; i < _rowCount; i++) {
+         rows[i] = i;
+      }
+      sort(_hashes, rows, _rowCount);
+
+      DataOutputStream index = new DataOutputStream(new BufferedOutputStream(_newIndex));
+      index.writeLong(MAGIC);
+      index.writeInt(_sheets.size());
+      for (int i = 0; i < _sheets.size(); i++) {
+         index.writeUTF(_sheets.get(i));
+         index.writeLong(_sheetStarts[i]);
+      }
+      index.writeLong(_rowCount);
+      for (int i = 0; i < _rowCount; i++) {
+         index.writeLong(_hashes[i]);
+         index.writeLong(rows[i]);
+      }
+      index.flush();
+   }
+}
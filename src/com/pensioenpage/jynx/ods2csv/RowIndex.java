@@ -0,0 +1,416 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the rows in a converted CSV file, for random access. For every
+ * <em>n</em>th row the index holds the byte offset at which that row starts,
+ * and for every sheet the row it starts at and the number of rows it
+ * contains. Rows are numbered from 0, both across the whole file and within
+ * each sheet.
+ *
+ * <p>An index is produced by
+ * {@link Converter#convert(InputStream,OutputStream,OutputStream)} and
+ * read back using {@link #read(InputStream)}. To read rows from the CSV file
+ * using an index, see {@link MappedCsv}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public final class RowIndex extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default interval between indexed rows.
+    */
+   public static final int DEFAULT_INTERVAL = 1024;
+
+   /**
+    * The header that identifies a row index, <code>"ODS2CSVI"</code>.
+    */
+   private static final long MAGIC = 0x4f44533243535649L;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Reads a row index from the specified stream. The stream is not closed.
+    *
+    * @param in
+    *    the stream to read from, cannot be <code>null</code>.
+    *
+    * @return
+    *    the row index, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>in == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error, or if the stream does not contain a valid
+    *    row index.
+    */
+   public static RowIndex read(InputStream in)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (in == null) {
+         throw new IllegalArgumentException("in == null");
+      }
+
+      DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+      try {
+         if (data.readLong() != MAGIC) {
+            throw new IOException("Stream does not contain a valid row index.");
+         }
+
+         int interval = data.readInt();
+         if (interval < 1) {
+            throw new IOException("Stream does not contain a valid row index.");
+         }
+         RowIndex index = new RowIndex(interval);
+         index._rowCount = data.readLong();
+         index._size     = data.readLong();
+         if (index._rowCount < 0L || index._size < 0L) {
+            throw new IOException("Stream does not contain a valid row index.");
+         }
+
+         int sheetCount = data.readInt();
+         if (sheetCount < 0) {
+            throw new IOException("Stream does not contain a valid row index.");
+         }
+         for (int i = 0; i < sheetCount; i++) {
+            String name     = data.readUTF();
+            long   startRow = data.readLong();
+            long   offset   = data.readLong();
+            long   rowCount = data.readLong();
+            if (startRow < 0L || offset < 0L || rowCount < 0L) {
+               throw new IOException("Stream does not contain a valid row index.");
+            }
+            index._sheets.add(new Sheet(name, startRow, offset, rowCount));
+         }
+
+         // There is an offset for every interval rows, starting at row 0;
+         // the array grows as offsets are read, so a corrupt count cannot
+         // exhaust memory
+         long expectedCount = index._rowCount / interval + ((index._rowCount % interval == 0L) ? 0L : 1L);
+         int offsetCount = data.readInt();
+         if (offsetCount != expectedCount) {
+            throw new IOException("Stream does not contain a valid row index.");
+         }
+         for (int i = 0; i < offsetCount; i++) {
+            index.addOffset(data.readLong());
+         }
+
+         return index;
+      } catch (EOFException e) {
+         throw new IOException("Stream does not contain a valid row index.", e);
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new, empty <code>RowIndex</code>.
+    *
+    * @param interval
+    *    the interval between indexed rows, must be &gt;= 1.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>interval &lt; 1</code>.
+    */
+   RowIndex(int interval) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (interval < 1) {
+         throw new IllegalArgumentException("interval (" + interval + ") < 1");
+      }
+
+      _interval = interval;
+      _sheets   = new ArrayList<Sheet>();
+      _offsets  = new long[16];
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The interval between indexed rows.
+    */
+   private final int _interval;
+
+   /**
+    * The sheets, in document order. Never <code>null</code>.
+    */
+   private final List<Sheet> _sheets;
+
+   /**
+    * The byte offsets of rows <code>0</code>, <code>interval</code>,
+    * <code>2 * interval</code>, etc. Only the first
+    * {@link #_offsetCount} elements are in use.
+    */
+   private long[] _offsets;
+
+   private int _offsetCount;
+
+   /**
+    * The total number of rows.
+    */
+   private long _rowCount;
+
+   /**
+    * The total size of the CSV output, in bytes.
+    */
+   private long _size;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Records the start of a new sheet, at the current position.
+    *
+    * @param name
+    *    the name of the sheet, cannot be <code>null</code>.
+    */
+   void startSheet(String name) {
+      _sheets.add(new Sheet(name, _rowCount, _size, 0L));
+   }
+
+   /**
+    * Records a row that has been written, starting at the current position.
+    *
+    * @param length
+    *    the length of the row in bytes, including the newline.
+    */
+   void addRow(long length) {
+      if (_rowCount % _interval == 0L) {
+         addOffset(_size);
+      }
+      _rowCount++;
+      _size += length;
+      if (! _sheets.isEmpty()) {
+         _sheets.get(_sheets.size() - 1)._rowCount++;
+      }
+   }
+
+   private void addOffset(long offset) {
+      if (_offsetCount == _offsets.length) {
+         long[] bigger = new long[_offsets.length * 2];
+         System.arraycopy(_offsets, 0, bigger, 0, _offsetCount);
+         _offsets = bigger;
+      }
+      _offsets[_offsetCount++] = offset;
+   }
+
+   /**
+    * Writes this index to the specified stream. The stream is flushed, but
+    * not closed.
+    *
+    * @param out
+    *    the stream to write to, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void write(OutputStream out) throws IOException {
+      DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+      data.writeLong(MAGIC);
+      data.writeInt(_interval);
+      data.writeLong(_rowCount);
+      data.writeLong(_size);
+      data.writeInt(_sheets.size());
+      for (Sheet sheet : _sheets) {
+         data.writeUTF(sheet._name);
+         data.writeLong(sheet._startRow);
+         data.writeLong(sheet._offset);
+         data.writeLong(sheet._rowCount);
+      }
+      data.writeInt(_offsetCount);
+      for (int i = 0; i < _offsetCount; i++) {
+         data.writeLong(_offsets[i]);
+      }
+      data.flush();
+   }
+
+   /**
+    * Returns the interval between indexed rows.
+    *
+    * @return
+    *    the interval, always &gt;= 1.
+    */
+   public int getInterval() {
+      return _interval;
+   }
+
+   /**
+    * Returns the total number of rows.
+    *
+    * @return
+    *    the number of rows, always &gt;= 0.
+    */
+   public long getRowCount() {
+      return _rowCount;
+   }
+
+   /**
+    * Returns the total size of the indexed CSV file.
+    *
+    * @return
+    *    the size in bytes, always &gt;= 0.
+    */
+   public long getSize() {
+      return _size;
+   }
+
+   /**
+    * Returns the names of all sheets, in document order.
+    *
+    * @return
+    *    an unmodifiable list of sheet names, never <code>null</code>.
+    */
+   public List<String> getSheetNames() {
+      List<String> names = new ArrayList<String>(_sheets.size());
+      for (Sheet sheet : _sheets) {
+         names.add(sheet._name);
+      }
+      return Collections.unmodifiableList(names);
+   }
+
+   /**
+    * Returns the number of rows in the specified sheet.
+    *
+    * @param sheetName
+    *    the name of the sheet, cannot be <code>null</code>.
+    *
+    * @return
+    *    the number of rows, always &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if there is no sheet with the specified name.
+    */
+   public long getRowCount(String sheetName) throws IllegalArgumentException {
+      return getSheet(sheetName)._rowCount;
+   }
+
+   /**
+    * Returns the byte offset at which the specified sheet starts.
+    *
+    * @param sheetName
+    *    the name of the sheet, cannot be <code>null</code>.
+    *
+    * @return
+    *    the byte offset, always &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if there is no sheet with the specified name.
+    */
+   public long getSheetOffset(String sheetName) throws IllegalArgumentException {
+      return getSheet(sheetName)._offset;
+   }
+
+   /**
+    * Converts a row number within a sheet to a row number within the whole
+    * file.
+    *
+    * @param sheetName
+    *    the name of the sheet, cannot be <code>null</code>.
+    *
+    * @param row
+    *    the 0-based row number within the sheet.
+    *
+    * @return
+    *    the 0-based row number within the file.
+    *
+    * @throws IllegalArgumentException
+    *    if there is no sheet with the specified name, or if
+    *    <code>row &lt; 0 || row &gt;= getRowCount(sheetName)</code>.
+    */
+   public long getFileRow(String sheetName, long row) throws IllegalArgumentException {
+      Sheet sheet = getSheet(sheetName);
+      if (row < 0L || row >= sheet._rowCount) {
+         throw new IllegalArgumentException("row (" + row + ") is out of range for sheet \"" + sheetName + "\" (" + sheet._rowCount + " rows).");
+      }
+      return sheet._startRow + row;
+   }
+
+   /**
+    * Returns the nearest indexed row at or before the specified row.
+    *
+    * @param row
+    *    the 0-based row number within the file.
+    *
+    * @return
+    *    the 0-based row number of the nearest indexed row.
+    */
+   long getIndexedRow(long row) {
+      return (row / _interval) * _interval;
+   }
+
+   /**
+    * Returns the byte offset of an indexed row.
+    *
+    * @param indexedRow
+    *    a row number returned by {@link #getIndexedRow(long)}.
+    *
+    * @return
+    *    the byte offset at which that row starts.
+    */
+   long getIndexedOffset(long indexedRow) {
+      return _offsets[(int) (indexedRow / _interval)];
+   }
+
+   private Sheet getSheet(String name) throws IllegalArgumentException {
+      for (Sheet sheet : _sheets) {
+         if (sheet._name.equals(name)) {
+            return sheet;
+         }
+      }
+      throw new IllegalArgumentException("No sheet named \"" + name + "\".");
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * The position of a single sheet within the CSV output.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Sheet {
+
+      Sheet(String name, long startRow, long offset, long rowCount) {
+         _name     = name;
+         _startRow = startRow;
+         _offset   = offset;
+         _rowCount = rowCount;
+      }
+
+      private final String _name;
+      private final long   _startRow;
+      private final long   _offset;
+      private long         _rowCount;
+   }
+}
@@ -0,0 +1,274 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Byte buffer that keeps at most a fixed number of bytes in memory. Any data
+ * written beyond this memory budget spills over to a temporary file, which
+ * is removed again on {@link #reset()} and {@link #close()}.
+ *
+ * <p>Instances of this class are not thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class SpillBuffer extends OutputStream {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The initial capacity of the in-memory buffer, in bytes.
+    */
+   private static final int INITIAL_CAPACITY = 256;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>SpillBuffer</code> with the specified memory
+    * budget.
+    *
+    * @param budget
+    *    the maximum number of bytes to keep in memory, must be &gt;= 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>budget &lt; 0</code>.
+    */
+   SpillBuffer(int budget) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (budget < 0) {
+         throw new IllegalArgumentException("budget (" + budget + ") < 0");
+      }
+
+      // Initialize instance fields
+      _budget = budget;
+      _buffer = new byte[Math.min(budget, INITIAL_CAPACITY)];
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The maximum number of bytes to keep in memory.
+    */
+   private final int _budget;
+
+   /**
+    * The in-memory part of the buffered data. Never <code>null</code>.
+    */
+   private byte[] _buffer;
+
+   /**
+    * The number of bytes in {@link #_buffer} that are in use.
+    */
+   private int _count;
+
+   /**
+    * The temporary file that holds the data beyond the memory budget, or
+    * <code>null</code> if nothing has been spilled.
+    */
+   private File _spillFile;
+
+   /**
+    * The stream writing to {@link #_spillFile}, or <code>null</code> if
+    * nothing has been spilled.
+    */
+   private OutputStream _spillOut;
+
+   /**
+    * The number of bytes written to {@link #_spillFile}.
+    */
+   private long _spillCount;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the total number of bytes currently buffered, both in memory
+    * and on disk.
+    *
+    * @return
+    *    the number of bytes buffered, always &gt;= 0.
+    */
+   long size() {
+      return _count + _spillCount;
+   }
+
+   /**
+    * Determines whether any of the buffered data has spilled to disk.
+    *
+    * @return
+    *    <code>true</code> if a temporary file is in use,
+    *    <code>false</code> otherwise.
+    */
+   boolean isSpilled() {
+      return _spillFile != null;
+   }
+
+   @Override
+   public void write(int b) throws IOException {
+      if (_count < _buffer.length || grow(1)) {
+         _buffer[_count++] = (byte) b;
+      } else {
+         spillStream().write(b);
+         _spillCount++;
+      }
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+
+      // Fill the in-memory buffer as far as the budget allows
+      int room = _buffer.length - _count;
+      if (room < len && _spillOut == null) {
+         grow(len);
+         room = _buffer.length - _count;
+      }
+      if (_spillOut == null && room > 0) {
+         int n = Math.min(room, len);
+         System.arraycopy(b, off, _buffer, _count, n);
+         _count += n;
+         off    += n;
+         len    -= n;
+      }
+
+      // Spill the remainder to disk
+      if (len > 0) {
+         spillStream().write(b, off, len);
+         _spillCount += len;
+      }
+   }
+
+   /**
+    * Attempts to grow the in-memory buffer so it can hold the specified
+    * number of additional bytes, without exceeding the memory budget.
+    *
+    * @param extra
+    *    the number of additional bytes needed.
+    *
+    * @return
+    *    <code>true</code> if the buffer now has room for at least one more
+    *    byte, <code>false</code> if the memory budget is exhausted.
+    */
+   private boolean grow(int extra) {
+      if (_spillOut != null || _buffer.length >= _budget) {
+         return _count < _buffer.length;
+      }
+
+      long wanted   = Math.max((long) _buffer.length * 2L, (long) _count + extra);
+      int  capacity = (int) Math.min(wanted, (long) _budget);
+      byte[] bigger = new byte[capacity];
+      System.arraycopy(_buffer, 0, bigger, 0, _count);
+      _buffer = bigger;
+
+      return _count < _buffer.length;
+   }
+
+   /**
+    * Returns the stream to the temporary spill file, creating it if
+    * necessary.
+    *
+    * @return
+    *    the spill stream, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the temporary file could not be created.
+    */
+   private OutputStream spillStream() throws IOException {
+      if (_spillOut == null) {
+         _spillFile = File.createTempFile("ods2csv-", ".spill");
+         _spillOut = new BufferedOutputStream(new FileOutputStream(_spillFile));
+      }
+      return _spillOut;
+   }
+
+   @Override
+   public void flush() throws IOException {
+      if (_spillOut != null) {
+         _spillOut.flush();
+      }
+   }
+
+   /**
+    * Writes all buffered data to the specified output stream, first the
+    * in-memory part, then the spilled part (if any). The buffer itself is
+    * left unchanged.
+    *
+    * @param out
+    *    the stream to write to, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>out == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void writeTo(OutputStream out) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (out == null) {
+         throw new IllegalArgumentException("out == null");
+      }
+
+      out.write(_buffer, 0, _count);
+
+      if (_spillOut != null) {
+         _spillOut.flush();
+         InputStream in = new BufferedInputStream(new FileInputStream(_spillFile));
+         try {
+            byte[] chunk = new byte[8192];
+            for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+               out.write(chunk, 0, n);
+            }
+         } finally {
+            in.close();
+         }
+      }
+   }
+
+   /**
+    * Discards all buffered data, removing the temporary spill file, if any.
+    * The in-memory buffer is retained for reuse.
+    */
+   void reset() {
+      _count      = 0;
+      _spillCount = 0L;
+      discardSpillFile();
+   }
+
+   @Override
+   public void close() {
+      reset();
+   }
+
+   private void discardSpillFile() {
+      if (_spillOut != null) {
+         try {
+            _spillOut.close();
+         } catch (IOException e) {
+            // ignore
+         }
+         _spillOut = null;
+      }
+      if (_spillFile != null) {
+         _spillFile.delete();
+         _spillFile = null;
+      }
+   }
+}
@@ -0,0 +1,452 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Collects per-column statistics while a document is converted, so a table
+ * schema can be derived without scanning the CSV output again. For each
+ * column of each sheet the following is determined: the inferred type, the
+ * number of empty cells, the minimum and maximum value, an estimate of the
+ * number of distinct values and the maximum value length.
+ *
+ * <p>The statistics describe the values as they appear in the CSV output.
+ * Only <code>float</code> and <code>date</code> cells are written as typed
+ * values; all other cells, including percentages, currencies, booleans and
+ * times, are written as their display text and count as strings.
+ *
+ * <p>Memory use is bounded, no matter how large the cells are: the text of
+ * a cell is hashed and measured while it streams by, and only the first
+ * {@value #MAX_VALUE_LENGTH} characters are kept for the minimum and
+ * maximum. The number of distinct values is estimated using HyperLogLog,
+ * with a standard error of about 2%, in constant memory per column.
+ *
+ * <p>The statistics are written as a JSON document.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Statistics extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The inferred type of a column that only contains empty cells.
+    */
+   private static final String EMPTY_TYPE = "empty";
+
+   /**
+    * The inferred type of a column that contains text, or values of
+    * different types.
+    */
+   private static final String STRING_TYPE = "string";
+
+   /**
+    * The type of cells written as numbers.
+    */
+   private static final String FLOAT_TYPE = "float";
+
+   /**
+    * The maximum number of characters of a value kept for the minimum and
+    * maximum. Longer values are truncated.
+    */
+   static final int MAX_VALUE_LENGTH = 256;
+
+   /**
+    * The FNV-1a 64-bit offset basis.
+    */
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+   /**
+    * The FNV-1a 64-bit prime.
+    */
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   /**
+    * The number of bits of the hash used to select a HyperLogLog register.
+    */
+   private static final int HLL_BITS = 11;
+
+   /**
+    * The number of HyperLogLog registers per column.
+    */
+   private static final int HLL_REGISTERS = 1 << HLL_BITS;
+
+   /**
+    * Pattern for numbers that can be written to JSON as-is.
+    */
+   private static final Pattern JSON_NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Finalizes an FNV-1a hash, spreading the bits evenly, as HyperLogLog
+    * needs.
+    */
+   private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   private static void writeString(Writer out, String s) throws IOException {
+      out.write('"');
+      for (int i = 0, n = s.length(); i < n; i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"':
+               out.write("\\\"");
+               break;
+            case '\\':
+               out.write("\\\\");
+               break;
+            case '\n':
+               out.write("\\n");
+               break;
+            case '\r':
+               out.write("\\r");
+               break;
+            case '\t':
+               out.write("\\t");
+               break;
+            default:
+               if (c < 0x20) {
+                  String hex = Integer.toHexString(c);
+                  out.write("\\u0000", 0, 6 - hex.length());
+                  out.write(hex);
+               } else {
+                  out.write(c);
+               }
+         }
+      }
+      out.write('"');
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Statistics</code> object without any sheets.
+    */
+   Statistics() {
+      _sheets = new ArrayList<Sheet>();
+      _prefix = new StringBuilder();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The sheets seen so far, in document order. Never <code>null</code>.
+    */
+   private final List<Sheet> _sheets;
+
+   /**
+    * The first {@link #MAX_VALUE_LENGTH} characters of the text of the
+    * current cell. Never <code>null</code>.
+    */
+   private final StringBuilder _prefix;
+
+   /**
+    * The length of the text of the current cell.
+    */
+   private long _length;
+
+   /**
+    * The hash of the text of the current cell, while it is being computed.
+    */
+   private long _hash = FNV_OFFSET;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Records the start of a new sheet. Subsequent rows belong to this sheet.
+    *
+    * @param name
+    *    the name of the sheet, cannot be <code>null</code>.
+    */
+   void startSheet(String name) {
+      _sheets.add(new Sheet(name));
+   }
+
+   /**
+    * Records the start of a cell of the current row.
+    */
+   void startCell() {
+      _prefix.setLength(0);
+      _length = 0L;
+      _hash   = FNV_OFFSET;
+   }
+
+   /**
+    * Records a piece of the text of the current cell, as written to the
+    * output.
+    *
+    * @param ch
+    *    the characters, cannot be <code>null</code>.
+    *
+    * @param start
+    *    the index of the first character.
+    *
+    * @param length
+    *    the number of characters.
+    */
+   void text(char[] ch, int start, int length) {
+      long hash = _hash;
+      for (int i = start, end = start + length; i < end; i++) {
+         hash = (hash ^ ch[i]) * FNV_PRIME;
+      }
+      _hash = hash;
+      _length += length;
+
+      int room = MAX_VALUE_LENGTH - _prefix.length();
+      if (room > 0) {
+         _prefix.append(ch, start, Math.min(room, length));
+      }
+   }
+
+   /**
+    * Records the end of a cell of the current row.
+    *
+    * @param column
+    *    the 0-based column index.
+    *
+    * @param type
+    *    <code>"float"</code> or <code>"date"</code> if the cell is written
+    *    as a typed value, or <code>null</code> if it is written as text.
+    *
+    * @param value
+    *    the typed value, or <code>null</code> if the value is the text
+    *    passed to {@link #text(char[],int,int)}.
+    */
+   void endCell(int column, String type, String value) {
+      if (_sheets.isEmpty()) {
+         startSheet("");
+      }
+      if (value != null) {
+         startCell();
+         text(value.toCharArray(), 0, value.length());
+      }
+      _sheets.get(_sheets.size() - 1).cell(column, type, _prefix.toString(), _length, mix(_hash));
+   }
+
+   /**
+    * Records the end of the current row.
+    */
+   void endRow() {
+      if (_sheets.isEmpty()) {
+         startSheet("");
+      }
+      _sheets.get(_sheets.size() - 1)._rowCount++;
+   }
+
+   /**
+    * Writes the statistics as a JSON document, encoded as UTF-8. The stream
+    * is flushed, but not closed.
+    *
+    * @param out
+    *    the stream to write to, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void write(OutputStream out) throws IOException {
+      Writer w = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+      w.write("{\n  \"sheets\": [");
+      for (int s = 0; s < _sheets.size(); s++) {
+         Sheet sheet = _sheets.get(s);
+         w.write(s == 0 ? "\n" : ",\n");
+         w.write("    {\n      \"name\": ");
+         writeString(w, sheet._name);
+         w.write(",\n      \"rows\": " + sheet._rowCount);
+         w.write(",\n      \"columns\": [");
+         for (int c = 0; c < sheet._columns.size(); c++) {
+            w.write(c == 0 ? "\n        " : ",\n        ");
+            sheet._columns.get(c).write(w, c, sheet._rowCount);
+         }
+         w.write(sheet._columns.isEmpty() ? "]\n    }" : "\n      ]\n    }");
+      }
+      w.write(_sheets.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+      w.flush();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Statistics for a single sheet.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Sheet {
+
+      Sheet(String name) {
+         _name    = name;
+         _columns = new ArrayList<Column>();
+      }
+
+      private final String       _name;
+      private final List<Column> _columns;
+      private long               _rowCount;
+
+      void cell(int column, String type, String prefix, long length, long hash) {
+         while (_columns.size() <= column) {
+            _columns.add(new Column());
+         }
+         if (length > 0L) {
+            _columns.get(column).add(type, prefix, length, hash);
+         }
+      }
+   }
+
+   /**
+    * Statistics for a single column.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Column {
+
+      /**
+       * The inferred type, or <code>null</code> if no value was seen yet.
+       */
+      private String _type;
+
+      /**
+       * The number of non-empty cells.
+       */
+      private long _count;
+
+      private String _minString;
+      private String _maxString;
+      private double _minNumber = Double.POSITIVE_INFINITY;
+      private double _maxNumber = Double.NEGATIVE_INFINITY;
+      private String _minNumberText;
+      private String _maxNumberText;
+      private long   _maxLength;
+
+      /**
+       * The HyperLogLog registers, allocated when the first value is seen.
+       */
+      private byte[] _registers;
+
+      void add(String type, String value, long length, long h) {
+         _count++;
+
+         // Infer the type
+         String t = (type == null) ? STRING_TYPE : type;
+         if (_type == null) {
+            _type = t;
+         } else if (! _type.equals(t)) {
+            _type = STRING_TYPE;
+         }
+
+         // Keep track of the minimum and maximum
+         if (_minString == null || value.compareTo(_minString) < 0) {
+            _minString = value;
+         }
+         if (_maxString == null || value.compareTo(_maxString) > 0) {
+            _maxString = value;
+         }
+         if (FLOAT_TYPE.equals(t)) {
+            try {
+               double number = Double.parseDouble(value);
+               if (number < _minNumber) {
+                  _minNumber     = number;
+                  _minNumberText = value;
+               }
+               if (number > _maxNumber) {
+                  _maxNumber     = number;
+                  _maxNumberText = value;
+               }
+            } catch (NumberFormatException e) {
+               _type = STRING_TYPE;
+            }
+         }
+         _maxLength = Math.max(_maxLength, length);
+
+         // Feed the distinct count estimator
+         if (_registers == null) {
+            _registers = new byte[HLL_REGISTERS];
+         }
+         int index = (int) (h >>> (64 - HLL_BITS));
+         int rank  = Math.min(Long.numberOfLeadingZeros(h << HLL_BITS), 64 - HLL_BITS) + 1;
+         if (rank > _registers[index]) {
+            _registers[index] = (byte) rank;
+         }
+      }
+
+      long estimateDistinct() {
+         if (_registers == null) {
+            return 0L;
+         }
+         double sum = 0.0;
+         int zeros = 0;
+         for (byte r : _registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+               zeros++;
+            }
+         }
+         double m     = HLL_REGISTERS;
+         double alpha = 0.7213 / (1.0 + 1.079 / m);
+         double estimate = alpha * m * m / sum;
+
+         // Small range correction (linear counting)
+         if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log(m / zeros);
+         }
+         return Math.min(Math.round(estimate), _count);
+      }
+
+      void write(Writer w, int index, long rowCount) throws IOException {
+         String type = (_type == null) ? EMPTY_TYPE : _type;
+         w.write("{\"index\": " + index + ", \"type\": ");
+         writeString(w, type);
+         w.write(", \"nulls\": " + (rowCount - _count));
+         w.write(", \"distinct\": " + estimateDistinct());
+         if (FLOAT_TYPE.equals(type)) {
+            w.write(", \"min\": ");
+            writeNumber(w, _minNumberText);
+            w.write(", \"max\": ");
+            writeNumber(w, _maxNumberText);
+         } else if (_minString != null) {
+            w.write(", \"min\": ");
+            writeString(w, _minString);
+            w.write(", \"max\": ");
+            writeString(w, _maxString);
+         }
+         w.write(", \"maxLength\": " + _maxLength + "}");
+      }
+
+      private static void writeNumber(Writer w, String number) throws IOException {
+         if (JSON_NUMBER.matcher(number).matches()) {
+            w.write(number);
+         } else {
+            writeString(w, number);
+         }
+      }
+   }
+}
@@ -7,7 +7,8 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 
 @Suite.SuiteClasses({
-   com.pensioenpage.jynx.ods2csv.tests.ConverterTests.class
+   com.pensioenpage.jynx.ods2csv.tests.ConverterTests.class,
+   com.pensioenpage.jynx.ods2csv.tests.ConverterTaskTests.class
 })
 
 public class AllTests {
@@ -0,0 +1,406 @@
+// Copyright 2009, PensioenPage B.V.
+package com.pensioenpage.jynx.ods2csv.tests;
+
+import com.pensioenpage.jynx.ods2csv.Converter;
+import com.pensioenpage.jynx.ods2csv.ConverterTask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests for the <code>ConverterTask</code> class.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public class ConverterTaskTests {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The pattern of the log message for a file converted in watch mode.
+    */
+   private static final Pattern CONVERTED = Pattern.compile("Converted \"(.*)\" in (\\d+) ms\\.");
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   @Test
+   public void testFailedConversion() throws Exception {
+
+      File dir = Files.createTempDirectory("ods2csv").toFile();
+      try {
+
+         // An out-of-date output file, some temporary files left behind by
+         // a killed run and an unrelated file that merely looks like one
+         File inFile  = new File(dir, "sheet.ods");
+         File outFile = new File(dir, "sheet.csv");
+         FileUtils.writeStringToFile(outFile, "previous\n", "UTF-8");
+         outFile.setLastModified(System.currentTimeMillis() - 60000L);
+         FileUtils.writeStringToFile(inFile, "Not a spreadsheet", "UTF-8");
+         FileUtils.touch(new File(dir, ".sheet.csv.123.tmp"));
+         FileUtils.touch(new File(dir, ".sheet.csv.rowidx.456.tmp"));
+         FileUtils.touch(new File(dir, ".notes.txt.789.tmp"));
+
+         // A failed conversion keeps the previous output, and leaves no
+         // temporary files behind
+         Log log = new Log();
+         ConverterTask task = createTask(dir, log);
+         task.setFailOnError(false);
+         task.setIndex(true);
+         task.execute();
+         assertEquals(1, log.count("Failed to convert"));
+         assertEquals("previous\n", FileUtils.readFileToString(outFile, "UTF-8"));
+         assertFalse(rowIndexFile(outFile).exists());
+         assertEquals(Arrays.asList(".notes.txt.789.tmp", "sheet.csv", "sheet.ods"), sortedNames(dir));
+
+         // The next run tries again, rather than skipping the file
+         log = new Log();
+         task = createTask(dir, log);
+         task.setFailOnError(false);
+         task.setIndex(true);
+         task.execute();
+         assertEquals(1, log.count("Failed to convert"));
+         assertEquals(0, log.count("Skipping"));
+
+         // Once the input is fixed, the output is replaced
+         byte[] ods = loadTestData("test3.ods");
+         FileUtils.writeByteArrayToFile(inFile, ods);
+         log = new Log();
+         task = createTask(dir, log);
+         task.setIndex(true);
+         task.execute();
+         assertEquals(0, log.count("Failed to convert"));
+         ByteArrayOutputStream csv = new ByteArrayOutputStream();
+         new Converter().convert(new ByteArrayInputStream(ods), csv);
+         assertArrayEquals(csv.toByteArray(), FileUtils.readFileToByteArray(outFile));
+         assertTrue(rowIndexFile(outFile).exists());
+      } finally {
+         FileUtils.deleteDirectory(dir);
+      }
+   }
+
+   @Test
+   public void testFailures() throws Exception {
+
+      File root       = Files.createTempDirectory("ods2csv").toFile();
+      File dir        = new File(root, "source");
+      File quarantine = new File(root, "quarantine");
+      File report     = new File(root, "report.csv");
+      try {
+         assertTrue(dir.mkdir());
+         assertTrue(quarantine.mkdir());
+
+         // A good file, a file that is not a spreadsheet, two files that
+         // would be converted to the same output file and an up-to-date file
+         byte[] ods = loadTestData("test3.ods");
+         FileUtils.writeByteArrayToFile(new File(dir, "good.ods"), ods);
+         FileUtils.writeStringToFile(new File(dir, "bad.ods"), "Not a spreadsheet", "UTF-8");
+         FileUtils.writeByteArrayToFile(new File(dir, "twin.ods"), ods);
+         FileUtils.writeByteArrayToFile(new File(dir, "twin.fods"), loadTestData("test3.fods"));
+         FileUtils.writeByteArrayToFile(new File(dir, "old.ods"), ods);
+         new File(dir, "old.ods").setLastModified(System.currentTimeMillis() - 60000L);
+         FileUtils.touch(new File(dir, "old.csv"));
+
+         // By default the build fails, but only after all files were
+         // considered and the report was written
+         Log log = new Log();
+         ConverterTask task = createTask(dir, log);
+         task.setQuarantineDir(quarantine);
+         task.setReport(report);
+         try {
+            task.execute();
+            fail("Expected BuildException.");
+         } catch (BuildException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("3 file(s) failed to convert, while 1 succeeded."));
+         }
+         assertTrue(new File(dir, "good.csv").exists());
+
+         // Only the file that fails because of its content is quarantined
+         assertEquals(Arrays.asList("bad.ods"), sortedNames(quarantine));
+         assertEquals(Arrays.asList("good.csv", "good.ods", "old.csv", "old.ods", "twin.fods", "twin.ods"), sortedNames(dir));
+
+         // The report has a record for every file
+         List<String> lines = FileUtils.readLines(report, "UTF-8");
+         assertEquals("file,status,duration,reason", lines.get(0));
+         lines = new ArrayList<String>(lines.subList(1, lines.size()));
+         Collections.sort(lines);
+         assertEquals(5, lines.size());
+         assertTrue(lines.get(0), lines.get(0).matches("bad\\.ods,failed,\\d+,.+"));
+         assertTrue(lines.get(1), lines.get(1).matches("good\\.ods,converted,\\d+,"));
+         assertEquals("old.ods,skipped,0,", lines.get(2));
+         assertTrue(lines.get(3), lines.get(3).matches("twin\\.fods,failed,\\d+,\"Both .*"));
+         assertTrue(lines.get(4), lines.get(4).matches("twin\\.ods,failed,\\d+,\"Both .*"));
+
+         // Without failOnError, failures are only logged
+         log = new Log();
+         task = createTask(dir, log);
+         task.setFailOnError(false);
+         task.execute();
+         assertEquals(1, log.count("2 file(s) failed to convert, while 0 succeeded."));
+      } finally {
+         FileUtils.deleteDirectory(root);
+      }
+   }
+
+   @Test
+   public void testConflicts() throws Exception {
+
+      File dir = Files.createTempDirectory("ods2csv").toFile();
+      try {
+         byte[] ods  = loadTestData("test3.ods");
+         byte[] fods = loadTestData("test3.fods");
+         FileUtils.writeByteArrayToFile(new File(dir, "a.ods"),  ods);
+         FileUtils.writeByteArrayToFile(new File(dir, "a.fods"), fods);
+         FileUtils.writeByteArrayToFile(new File(dir, "b.ods"),  ods);
+         FileUtils.writeByteArrayToFile(new File(dir, "b.fods"), fods);
+
+         // Two selected files with the same output file both fail, while
+         // an excluded file is no conflict
+         Log log = new Log();
+         ConverterTask task = createTask(dir, log);
+         task.setExcludes("b.fods");
+         task.setFailOnError(false);
+         task.execute();
+         assertEquals(1, log.count("Failed to convert \"" + new File(dir, "a.ods").getPath() + "\": Both"));
+         assertEquals(1, log.count("Failed to convert \"" + new File(dir, "a.fods").getPath() + "\": Both"));
+         assertFalse(new File(dir, "a.csv").exists());
+         assertTrue(new File(dir, "b.csv").exists());
+
+         // Neither is a file that is not included
+         log = new Log();
+         task = createTask(dir, log);
+         task.setIncludes("*.ods");
+         task.execute();
+         assertEquals(0, log.count("Failed to convert"));
+         assertTrue(new File(dir, "a.csv").exists());
+      } finally {
+         FileUtils.deleteDirectory(dir);
+      }
+   }
+
+   @Test
+   public void testWatch() throws Exception {
+
+      File dir = Files.createTempDirectory("ods2csv").toFile();
+      Log log = new Log();
+      ConverterTask task = createTask(dir, log);
+      task.setWatch(true);
+      task.setThreads(4);
+      task.setDebounce(100L);
+      Watch watch = new Watch(task);
+      try {
+         watch.start();
+         log.await("Watching ", 1);
+
+         // Changes within the debounce delay are coalesced into one conversion
+         File small = new File(dir, "small.fods");
+         for (int i = 1; i <= 5; i++) {
+            writeDocument(small, i);
+            Thread.sleep(10L);
+         }
+         log.await("Converted \"small.fods\"", 1);
+         Thread.sleep(500L);
+         assertEquals(1, log.count("Converted \"small.fods\""));
+         assertEquals(5, FileUtils.readLines(new File(dir, "small.csv"), "UTF-8").size());
+
+         // A file that keeps changing while it is converted is converted
+         // again afterwards, but never twice at the same time
+         File big = new File(dir, "big.fods");
+         File bigTemp = new File(dir, "big.tmp");
+         writeDocument(bigTemp, 100000);
+         Files.move(bigTemp.toPath(), big.toPath(), StandardCopyOption.ATOMIC_MOVE);
+         long lastChange = 0L;
+         for (int i = 0; i < 20; i++) {
+            Thread.sleep(150L);
+            lastChange = System.currentTimeMillis();
+            big.setLastModified(lastChange);
+         }
+         long[][] runs;
+         long deadline = System.currentTimeMillis() + 60000L;
+         do {
+            Thread.sleep(50L);
+            runs = log.runs("big.fods");
+         } while ((runs.length == 0 || runs[runs.length - 1][0] < lastChange) && System.currentTimeMillis() < deadline);
+         assertTrue("Expected the file to be converted again.", runs.length >= 2);
+         assertTrue("Expected a conversion after the last change.", runs[runs.length - 1][0] >= lastChange);
+         for (int i = 1; i < runs.length; i++) {
+            assertTrue("Conversions " + (i - 1) + " and " + i + " overlap.", runs[i][0] >= runs[i - 1][1] - 5L);
+         }
+      } finally {
+         watch.finish();
+         FileUtils.deleteDirectory(dir);
+      }
+      assertNull(watch._failure);
+      assertEquals(0, log.count("Failed to convert"));
+   }
+
+   private ConverterTask createTask(File dir, Log log) {
+      Project project = new Project();
+      project.setBaseDir(dir);
+      project.addBuildListener(log);
+      ConverterTask task = new ConverterTask();
+      task.setProject(project);
+      task.setTaskName("ods2csv");
+      task.setDir(dir);
+      return task;
+   }
+
+   private static File rowIndexFile(File outFile) {
+      return new File(outFile.getPath() + ".rowidx");
+   }
+
+   private static List<String> sortedNames(File dir) {
+      List<String> names = new ArrayList<String>(Arrays.asList(dir.list()));
+      Collections.sort(names);
+      return names;
+   }
+
+   private byte[] loadTestData(String name) throws Exception {
+      InputStream byteStream = getClass().getResourceAsStream(name);
+      return (byteStream == null) ? null : IOUtils.toByteArray(byteStream);
+   }
+
+   /**
+    * Writes a Flat ODS document with a single sheet, with the specified
+    * number of rows of three cells each.
+    */
+   private static void writeDocument(File file, int rows) throws Exception {
+      StringBuilder xml = new StringBuilder();
+      xml.append("<office:document xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\"");
+      xml.append(" xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\"");
+      xml.append(" xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\">");
+      xml.append("<office:body><office:spreadsheet><table:table table:name=\"Sheet1\">");
+      for (int i = 0; i < rows; i++) {
+         xml.append("<table:table-row>");
+         xml.append("<table:table-cell><text:p>Row ").append(i).append("</text:p></table:table-cell>");
+         xml.append("<table:table-cell office:value-type=\"float\" office:value=\"").append(i).append("\"><text:p>").append(i).append("</text:p></table:table-cell>");
+         xml.append("<table:table-cell><text:p>Some text</text:p></table:table-cell>");
+         xml.append("</table:table-row>");
+      }
+      xml.append("</table:table></office:spreadsheet></office:body></office:document>");
+      FileUtils.writeStringToFile(file, xml.toString(), "UTF-8");
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Build listener that records the messages logged by the task.
+    */
+   private static final class Log implements BuildListener {
+
+      /**
+       * The messages logged so far, with the time each was logged at.
+       */
+      private final List<String> _messages = new ArrayList<String>();
+      private final List<Long>   _times    = new ArrayList<Long>();
+
+      public synchronized void messageLogged(BuildEvent event) {
+         _messages.add(event.getMessage());
+         _times.add(System.currentTimeMillis());
+      }
+
+      synchronized int count(String prefix) {
+         int count = 0;
+         for (String message : _messages) {
+            if (message.startsWith(prefix)) {
+               count++;
+            }
+         }
+         return count;
+      }
+
+      /**
+       * Waits until at least the specified number of messages that start
+       * with the specified prefix were logged.
+       */
+      void await(String prefix, int count) throws Exception {
+         long deadline = System.currentTimeMillis() + 60000L;
+         while (count(prefix) < count) {
+            assertTrue("Timed out waiting for " + prefix, System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+         }
+      }
+
+      /**
+       * Returns the start and end time of each logged conversion of the
+       * specified file in watch mode, in order.
+       */
+      synchronized long[][] runs(String name) {
+         List<long[]> runs = new ArrayList<long[]>();
+         for (int i = 0; i < _messages.size(); i++) {
+            Matcher matcher = CONVERTED.matcher(_messages.get(i));
+            if (matcher.matches() && name.equals(matcher.group(1))) {
+               long end = _times.get(i);
+               runs.add(new long[] { end - Long.parseLong(matcher.group(2)), end });
+            }
+         }
+         return runs.toArray(new long[runs.size()][]);
+      }
+
+      public void buildStarted(BuildEvent event)  {}
+      public void buildFinished(BuildEvent event) {}
+      public void targetStarted(BuildEvent event) {}
+      public void targetFinished(BuildEvent event) {}
+      public void taskStarted(BuildEvent event)   {}
+      public void taskFinished(BuildEvent event)  {}
+   }
+
+   /**
+    * Runs a task in watch mode on a separate thread, until stopped.
+    */
+   private static final class Watch extends Thread {
+
+      Watch(ConverterTask task) {
+         _task = task;
+      }
+
+      private final ConverterTask _task;
+
+      /**
+       * The exception thrown by the task, if any.
+       */
+      private volatile Throwable _failure;
+
+      @Override
+      public void run() {
+         try {
+            _task.execute();
+         } catch (Throwable e) {
+            _failure = e;
+         }
+      }
+
+      void finish() throws Exception {
+         interrupt();
+         join(60000L);
+         assertFalse(isAlive());
+      }
+   }
+}
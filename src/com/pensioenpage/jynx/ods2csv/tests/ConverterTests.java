@@ -1,12 +1,28 @@
 // Copyright 2009, PensioenPage B.V.
 package com.pensioenpage.jynx.ods2csv.tests;
 
+import com.pensioenpage.jynx.ods2csv.BlockGzipOutputStream;
+import com.pensioenpage.jynx.ods2csv.ConversionException;
 import com.pensioenpage.jynx.ods2csv.Converter;
+import com.pensioenpage.jynx.ods2csv.MappedCsv;
+import com.pensioenpage.jynx.ods2csv.RowIndex;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import static org.junit.Assert.*;
@@ -67,6 +83,494 @@ public class ConverterTests {
       System.err.println("Ran " + (i - 1) + " test case(s).");
    }
 
+   @Test
+   public void testLimits() throws Exception {
+
+      byte[] ods = loadTestData(3, "ods");
+
+      // Setters do not accept negative values
+      Converter converter = new Converter();
+      try {
+         converter.setMemoryBudget(-1);
+         fail("Expected IllegalArgumentException.");
+      } catch (IllegalArgumentException e) {
+         // as expected
+      }
+      try {
+         converter.setMaxCells(-1L);
+         fail("Expected IllegalArgumentException.");
+      } catch (IllegalArgumentException e) {
+         // as expected
+      }
+
+      // Output must not depend on whether rows spill to disk
+      ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(ods), inMemory);
+      converter.setMemoryBudget(1);
+      ByteArrayOutputStream spilled = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(ods), spilled);
+      assertArrayEquals(inMemory.toByteArray(), spilled.toByteArray());
+
+      // Exceeding a limit fails the conversion
+      converter = new Converter();
+      converter.setMaxCellsPerRow(2);
+      assertLimitExceeded(converter, ods);
+
+      converter = new Converter();
+      converter.setMaxCells(5L);
+      assertLimitExceeded(converter, ods);
+
+      converter = new Converter();
+      converter.setMaxContentSize(100L);
+      assertLimitExceeded(converter, ods);
+
+      // Entries before content.xml count towards the content size limit
+      byte[] junk = zipWithJunk(extractContent(ods), 1024 * 1024);
+      converter = new Converter();
+      ByteArrayOutputStream junkCSV = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(junk), junkCSV);
+      assertArrayEquals(inMemory.toByteArray(), junkCSV.toByteArray());
+      converter.setMaxContentSize(64L * 1024L);
+      assertLimitExceeded(converter, junk);
+   }
+
+   @Test
+   public void testConvertChanges() throws Exception {
+
+      byte[] ods = loadTestData(3, "ods");
+      Converter converter = new Converter();
+
+      // Without a previous index, all rows are added
+      ByteArrayOutputStream csv   = new ByteArrayOutputStream();
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      converter.convertChanges(new ByteArrayInputStream(ods), csv, null, index);
+      String[] records = new String(csv.toByteArray(), "UTF-8").split("\n");
+      assertEquals(6, records.length);
+      assertEquals("A,Blad1,1,\"A1\",\"B1\",\"C1\",", records[0]);
+      assertEquals("A,Blad1,6,\"A6\",,\"C6\",",         records[5]);
+
+      // Against its own index, nothing changed
+      csv = new ByteArrayOutputStream();
+      ByteArrayOutputStream index2 = new ByteArrayOutputStream();
+      converter.convertChanges(new ByteArrayInputStream(ods), csv, new ByteArrayInputStream(index.toByteArray()), index2);
+      assertEquals(0, csv.size());
+      assertArrayEquals(index.toByteArray(), index2.toByteArray());
+
+      // Rows are matched by content: an inserted row is the only change
+      byte[] base = flatDocument("S", "a", "b", "c");
+      assertEquals("A,S,1,\"new\"\n", changes(converter, flatDocument("S", "new", "a", "b", "c"), base));
+
+      // A removed row is reported with its old position
+      assertEquals("R,S,2\n", changes(converter, flatDocument("S", "a", "c"), base));
+
+      // A modified row is removed at its old position and added at its new one
+      assertEquals("A,S,2,\"x\"\nR,S,2\n", changes(converter, flatDocument("S", "a", "x", "c"), base));
+
+      // Duplicating a row adds a single row; a row moved to another sheet
+      // is removed from one and added to the other
+      assertEquals("A,S,4,\"a\"\n", changes(converter, flatDocument("S", "a", "b", "c", "a"), base));
+      assertEquals("A,\"T, too\",1,\"c\"\nR,S,3\n", changes(converter, flatDocument("S", "a", "b", null, "T, too", "c"), base));
+
+      // Many identical rows are matched one by one, in order, without
+      // slowing down
+      String[] rows = new String[50001];
+      Arrays.fill(rows, "same");
+      rows[0] = "S";
+      byte[] same = flatDocument(rows);
+      String[] more = Arrays.copyOf(rows, rows.length + 1);
+      more[rows.length] = "same";
+      assertEquals("A,S,50001,\"same\"\n", changes(converter, flatDocument(more), same));
+      assertEquals("R,S,50000\n", changes(converter, flatDocument(Arrays.copyOf(rows, rows.length - 1)), same));
+   }
+
+   /**
+    * Converts a document against the row index of a previous document and
+    * returns the changes.
+    */
+   private String changes(Converter converter, byte[] document, byte[] previous) throws Exception {
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      converter.convertChanges(new ByteArrayInputStream(previous), new ByteArrayOutputStream(), null, index);
+      ByteArrayOutputStream csv = new ByteArrayOutputStream();
+      converter.convertChanges(new ByteArrayInputStream(document), csv, new ByteArrayInputStream(index.toByteArray()), new ByteArrayOutputStream());
+      return new String(csv.toByteArray(), "UTF-8");
+   }
+
+   /**
+    * Generates a plain <code>content.xml</code> document. The arguments are
+    * a sheet name followed by the text of each row, with one cell per row;
+    * a <code>null</code> argument means the next argument is the name of a
+    * new sheet.
+    */
+   private byte[] flatDocument(String... sheetsAndRows) throws Exception {
+      StringBuilder xml = new StringBuilder();
+      xml.append("<office:document-content xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\"");
+      xml.append(" xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\"");
+      xml.append(" xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\">");
+      xml.append("<office:body><office:spreadsheet>");
+      boolean newSheet = true;
+      for (String s : sheetsAndRows) {
+         if (s == null) {
+            xml.append("</table:table>");
+            newSheet = true;
+         } else if (newSheet) {
+            xml.append("<table:table table:name=\"").append(s).append("\">");
+            newSheet = false;
+         } else {
+            xml.append("<table:table-row><table:table-cell><text:p>").append(s).append("</text:p></table:table-cell></table:table-row>");
+         }
+      }
+      xml.append("</table:table></office:spreadsheet></office:body></office:document-content>");
+      return xml.toString().getBytes("UTF-8");
+   }
+
+   @Test
+   public void testRowIndex() throws Exception {
+
+      // Convert with an index entry for every other row
+      Converter converter = new Converter();
+      converter.setRowIndexInterval(2);
+      ByteArrayOutputStream csv   = new ByteArrayOutputStream();
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(loadTestData(3, "ods")), csv, index);
+
+      RowIndex rowIndex = RowIndex.read(new ByteArrayInputStream(index.toByteArray()));
+      assertEquals(Arrays.asList("Blad1"), rowIndex.getSheetNames());
+      assertEquals(6L, rowIndex.getRowCount("Blad1"));
+      assertEquals(csv.size(), rowIndex.getSize());
+
+      // Read rows back, both at and in between indexed rows
+      String[] records = new String(csv.toByteArray(), "UTF-8").split("\n", -1);
+      File csvFile = File.createTempFile("ods2csv-", ".csv");
+      try {
+         FileUtils.writeByteArrayToFile(csvFile, csv.toByteArray());
+         MappedCsv mapped = new MappedCsv(csvFile, rowIndex);
+         try {
+            assertEquals(Arrays.asList(records[2], records[3]), mapped.getRows("Blad1", 2, 2));
+            assertEquals(Arrays.asList(records[5]),             mapped.getRows("Blad1", 5, 10));
+         } finally {
+            mapped.close();
+         }
+      } finally {
+         csvFile.delete();
+      }
+      // A corrupt index is reported as an I/O error
+      byte[] valid = index.toByteArray();
+      int offsetCountAt = valid.length - 8 * (int) ((rowIndex.getRowCount() + 1L) / 2L) - 4;
+      assertInvalidIndex(patchInt(valid, 8, 0));
+      assertInvalidIndex(patchInt(valid, 28, -1));
+      assertInvalidIndex(patchInt(valid, offsetCountAt, -1));
+      assertInvalidIndex(patchInt(valid, offsetCountAt, Integer.MAX_VALUE));
+      assertInvalidIndex(Arrays.copyOf(valid, valid.length - 1));
+   }
+
+   private static byte[] patchInt(byte[] bytes, int at, int value) {
+      byte[] patched = bytes.clone();
+      ByteBuffer.wrap(patched).putInt(at, value);
+      return patched;
+   }
+
+   private static void assertInvalidIndex(byte[] index) throws Exception {
+      try {
+         RowIndex.read(new ByteArrayInputStream(index));
+         fail("Expected IOException.");
+      } catch (IOException e) {
+         // as expected
+      }
+   }
+
+   @Test
+   public void testStatistics() throws Exception {
+
+      // Statistics do not affect the CSV output
+      byte[] ods = loadTestData(3, "ods");
+      Converter converter = new Converter();
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(ods), plain);
+      ByteArrayOutputStream csv   = new ByteArrayOutputStream();
+      ByteArrayOutputStream stats = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(ods), csv, null, stats);
+      assertArrayEquals(plain.toByteArray(), csv.toByteArray());
+
+      // Check a few of the statistics for the first and last column
+      String json = new String(stats.toByteArray(), "UTF-8");
+      assertTrue(json, json.contains("\"name\": \"Blad1\""));
+      assertTrue(json, json.contains("\"rows\": 6"));
+      assertTrue(json, json.contains("{\"index\": 0, \"type\": \"string\", \"nulls\": 1, \"distinct\": 5, \"min\": \"A1\", \"max\": \"A6\", \"maxLength\": 2}"));
+      assertTrue(json, json.contains("{\"index\": 3, \"type\": \"string\", \"nulls\": 5, \"distinct\": 1, \"min\": \"D5\", \"max\": \"D5\", \"maxLength\": 2}"));
+
+      // Only float and date cells are typed; other cells are profiled as the
+      // text that ends up in the CSV output, however long it is
+      StringBuilder longText = new StringBuilder();
+      for (int i = 0; i < 100000; i++) {
+         longText.append('x');
+      }
+      String xml = "<office:document-content xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+                 + " xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\""
+                 + " xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\">"
+                 + "<office:body><office:spreadsheet><table:table table:name=\"S\"><table:table-row>"
+                 + "<table:table-cell office:value-type=\"percentage\" office:value=\"0.12\"><text:p>12%</text:p></table:table-cell>"
+                 + "<table:table-cell office:value-type=\"currency\" office:value=\"1.5\"><text:p>EUR 1,50</text:p></table:table-cell>"
+                 + "<table:table-cell office:value-type=\"boolean\" office:boolean-value=\"true\"><text:p>TRUE</text:p></table:table-cell>"
+                 + "<table:table-cell office:value-type=\"float\" office:value=\"10\"><text:p>10</text:p></table:table-cell>"
+                 + "</table:table-row><table:table-row>"
+                 + "<table:table-cell><text:p>" + longText + "</text:p></table:table-cell>"
+                 + "<table:table-cell/><table:table-cell/>"
+                 + "<table:table-cell office:value-type=\"float\" office:value=\"3\"><text:p>3</text:p></table:table-cell>"
+                 + "</table:table-row></table:table></office:spreadsheet></office:body></office:document-content>";
+      csv   = new ByteArrayOutputStream();
+      stats = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(xml.getBytes("UTF-8")), csv, null, stats);
+      assertTrue(new String(csv.toByteArray(), "UTF-8").startsWith("\"12%\",\"EUR 1,50\",\"TRUE\",10\n"));
+      json = new String(stats.toByteArray(), "UTF-8");
+      String truncated = longText.substring(0, 256);
+      assertTrue(json, json.contains("{\"index\": 0, \"type\": \"string\", \"nulls\": 0, \"distinct\": 2, \"min\": \"12%\", \"max\": \"" + truncated + "\", \"maxLength\": 100000}"));
+      assertTrue(json, json.contains("{\"index\": 1, \"type\": \"string\", \"nulls\": 1, \"distinct\": 1, \"min\": \"EUR 1,50\", \"max\": \"EUR 1,50\", \"maxLength\": 8}"));
+      assertTrue(json, json.contains("{\"index\": 2, \"type\": \"string\", \"nulls\": 1, \"distinct\": 1, \"min\": \"TRUE\", \"max\": \"TRUE\", \"maxLength\": 4}"));
+      assertTrue(json, json.contains("{\"index\": 3, \"type\": \"float\", \"nulls\": 0, \"distinct\": 2, \"min\": 3, \"max\": 10, \"maxLength\": 2}"));
+   }
+
+   @Test
+   public void testBlockGzip() throws Exception {
+
+      // Compressible data that spans many blocks
+      Random random = new Random(5L);
+      byte[] data = new byte[5 * 1024 * 1024];
+      for (int i = 0; i < data.length; i++) {
+         data[i] = (byte) "abcdefgh,\"\n".charAt(random.nextInt(11));
+      }
+
+      // Round trip through GZIPInputStream: empty, a single partial block,
+      // exactly one block and many blocks, on 1 and on 4 threads
+      for (int threads : new int[] { 1, 4 }) {
+         for (int size : new int[] { 0, 10, 128 * 1024, data.length }) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream out = new BlockGzipOutputStream(compressed, threads);
+            out.write(data, 0, size / 2);
+            for (int i = size / 2; i < size / 2 + 100 && i < size; i++) {
+               out.write(data[i]);
+            }
+            if (size / 2 + 100 < size) {
+               out.write(data, size / 2 + 100, size - size / 2 - 100);
+            }
+            out.close();
+
+            byte[] inflated = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+            assertArrayEquals("threads=" + threads + ", size=" + size, Arrays.copyOf(data, size), inflated);
+         }
+      }
+   }
+
+   @Test
+   public void testFlatInput() throws Exception {
+
+      // Extract content.xml from a regular ODS document
+      byte[] ods = loadTestData(3, "ods");
+      byte[] content = extractContent(ods);
+
+      // The plain content.xml converts to the same output
+      Converter converter = new Converter();
+      ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(ods), zipped);
+      ByteArrayOutputStream flat = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(content), flat);
+      assertArrayEquals(zipped.toByteArray(), flat.toByteArray());
+
+      // A flat ODS document with an office:document root does too
+      byte[] fods = loadTestData(3, "fods");
+      assertNotNull(fods);
+      flat = new ByteArrayOutputStream();
+      converter.convert(new ByteArrayInputStream(fods), flat);
+      assertArrayEquals(zipped.toByteArray(), flat.toByteArray());
+
+      // Empty input fails
+      try {
+         converter.convert(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+         fail("Expected ConversionException.");
+      } catch (ConversionException e) {
+         // as expected
+      }
+   }
+
+   @Test
+   public void testExternalEntities() throws Exception {
+
+      // A document that pulls in a local file through an entity fails
+      File secret = File.createTempFile("secret", ".txt");
+      try {
+         FileUtils.writeStringToFile(secret, "Secret", "UTF-8");
+         String doc = new String(flatDocument("Sheet1", "&x;"), "UTF-8");
+         doc = "<!DOCTYPE office:document-content [<!ENTITY x SYSTEM \"" + secret.toURI() + "\">]>" + doc;
+         assertConversionFails(doc.getBytes("UTF-8"));
+      } finally {
+         secret.delete();
+      }
+
+      // So does one that refers to an external DTD, without fetching it
+      String doc = new String(flatDocument("Sheet1", "Row"), "UTF-8");
+      doc = "<!DOCTYPE office:document-content SYSTEM \"http://localhost:1/ods.dtd\">" + doc;
+      assertConversionFails(doc.getBytes("UTF-8"));
+   }
+
+   private void assertConversionFails(byte[] doc) throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+         new Converter().convert(new ByteArrayInputStream(doc), out);
+         fail("Expected ConversionException.");
+      } catch (ConversionException e) {
+         // as expected
+      }
+      assertFalse(new String(out.toByteArray(), "UTF-8").contains("Secret"));
+   }
+
+   @Test
+   public void testCancellation() throws Exception {
+
+      Converter converter = new Converter();
+      try {
+         converter.setTimeout(-1L);
+         fail("Expected IllegalArgumentException.");
+      } catch (IllegalArgumentException e) {
+         // as expected
+      }
+
+      // A generous time limit does not get in the way
+      byte[] ods = loadTestData(3, "ods");
+      converter.setTimeout(60000L);
+      converter.convert(new ByteArrayInputStream(ods), new ByteArrayOutputStream());
+
+      // Interrupting the thread cancels the conversion
+      Thread.currentThread().interrupt();
+      try {
+         converter.convert(new ByteArrayInputStream(ods), new ByteArrayOutputStream());
+         fail("Expected InterruptedIOException.");
+      } catch (InterruptedIOException e) {
+         assertEquals("Conversion was interrupted.", e.getMessage());
+      } finally {
+         Thread.interrupted();
+      }
+
+      // A conversion that takes too long fails, without leaving the thread
+      // interrupted
+      String[] rows = new String[300001];
+      rows[0] = "Big";
+      for (int i = 1; i < rows.length; i++) {
+         rows[i] = "Row " + i;
+      }
+      byte[] big = flatDocument(rows);
+      converter.setTimeout(1L);
+      assertTimedOut(converter, big, 1L);
+
+      // So does skipping a large ZIP entry before content.xml
+      byte[] junk = zipWithJunk(extractContent(ods), 256 * 1024 * 1024);
+      converter.setTimeout(10L);
+      assertTimedOut(converter, junk, 10L);
+   }
+
+   private void assertTimedOut(Converter converter, byte[] doc, long timeout) throws Exception {
+      try {
+         converter.convert(new ByteArrayInputStream(doc), new ByteArrayOutputStream());
+         fail("Expected ConversionException.");
+      } catch (ConversionException e) {
+         assertEquals("Conversion took longer than " + timeout + " ms.", e.getMessage());
+      }
+      assertFalse(Thread.currentThread().isInterrupted());
+   }
+
+   @Test
+   public void testIOErrors() throws Exception {
+
+      byte[] ods = loadTestData(3, "ods");
+      Converter converter = new Converter();
+
+      // Failing to write the output is not the document's fault
+      OutputStream brokenOut = new OutputStream() {
+         @Override
+         public void write(int b) throws IOException {
+            throw new IOException("Disk full.");
+         }
+      };
+      try {
+         converter.convert(new ByteArrayInputStream(ods), brokenOut);
+         fail("Expected IOException.");
+      } catch (IOException e) {
+         // as expected
+      }
+
+      // Neither is failing to read the input halfway
+      final byte[] content = extractContent(ods);
+      InputStream brokenIn = new InputStream() {
+         private int _count;
+         @Override
+         public int read() throws IOException {
+            if (_count >= content.length / 2) {
+               throw new IOException("Device not ready.");
+            }
+            return content[_count++] & 0xff;
+         }
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+               b[off] = (byte) read();
+            }
+            return len > 0 ? 1 : 0;
+         }
+      };
+      try {
+         converter.convert(brokenIn, new ByteArrayOutputStream());
+         fail("Expected IOException.");
+      } catch (IOException e) {
+         // as expected
+      }
+
+      // A ZIP file that is truncated halfway content.xml is
+      byte[] name = "content.xml".getBytes("UTF-8");
+      int at = 0;
+      while (! Arrays.equals(name, Arrays.copyOfRange(ods, at, at + name.length))) {
+         at++;
+      }
+      try {
+         converter.convert(new ByteArrayInputStream(Arrays.copyOf(ods, at + 200)), new ByteArrayOutputStream());
+         fail("Expected ConversionException.");
+      } catch (ConversionException e) {
+         // as expected
+      }
+   }
+
+   private void assertLimitExceeded(Converter converter, byte[] ods) throws Exception {
+      try {
+         converter.convert(new ByteArrayInputStream(ods), new ByteArrayOutputStream());
+         fail("Expected ConversionException.");
+      } catch (ConversionException e) {
+         // as expected
+      }
+   }
+
+   private byte[] extractContent(byte[] ods) throws Exception {
+      ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(ods));
+      ZipEntry entry;
+      do {
+         entry = zin.getNextEntry();
+      } while (entry != null && ! "content.xml".equals(entry.getName()));
+      assertNotNull(entry);
+      return IOUtils.toByteArray(zin);
+   }
+
+   private byte[] zipWithJunk(byte[] content, int junkSize) throws Exception {
+      ByteArrayOutputStream zip = new ByteArrayOutputStream();
+      ZipOutputStream zout = new ZipOutputStream(zip);
+      zout.putNextEntry(new ZipEntry("junk"));
+      byte[] zeroes = new byte[65536];
+      for (int left = junkSize; left > 0; left -= zeroes.length) {
+         zout.write(zeroes, 0, Math.min(left, zeroes.length));
+      }
+      zout.closeEntry();
+      zout.putNextEntry(new ZipEntry("content.xml"));
+      zout.write(content);
+      zout.closeEntry();
+      zout.close();
+      return zip.toByteArray();
+   }
+
    private byte[] loadTestData(int index, String suffix) throws Exception {
       InputStream byteStream = getClass().getResourceAsStream("test" + index + '.' + suffix);
       return (byteStream == null) ? null : IOUtils.toByteArray(byteStream);